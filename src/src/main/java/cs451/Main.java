@@ -1,6 +1,7 @@
 package cs451;
 
 import cs451.broadcast.BroadcastHandler;
+import cs451.link.LinkMetrics;
 import cs451.parser.Coordinator;
 import cs451.parser.Host;
 import cs451.parser.Parser;
@@ -14,6 +15,11 @@ public class Main {
         // write/flush output file if necessary
         BroadcastHandler.closeLog();
         System.out.println("Writing output.");
+
+        // the metrics are only reported once the output is written, and never on stdout
+        if (LinkMetrics.ENABLED) {
+            System.err.print(LinkMetrics.report());
+        }
     }
 
     private static void initSignalHandlers() {
@@ -1,8 +1,10 @@
 package cs451.broadcast;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
 
 import cs451.link.Link;
 import cs451.listener.BListener;
@@ -25,6 +27,12 @@ class BEBroadcast implements Broadcast {
      */
     private final List<Host> hosts;
 
+    /**
+     * The destinations of a broadcast message, indexed by the last hop of the
+     * message: all the distant hosts, except the one the message was sent from.
+     */
+    private final List<List<Integer>> destinations = new ArrayList<>();
+
     /**
      * The ID of the local host, to deliver the message directly instead of sending
      * it to itself.
@@ -37,6 +45,13 @@ class BEBroadcast implements Broadcast {
      */
     private final BListener deliver;
 
+    /**
+     * The lock held while a message is delivered to the upper layer, which is not
+     * thread-safe: local messages are delivered by the thread broadcasting them,
+     * and the others by the thread emptying the delivery buffer.
+     */
+    private final Object deliverLock = new Object();
+
     /**
      * The link used to send the messages (in the case of this project:
      * PerfectLink).
@@ -58,10 +73,37 @@ class BEBroadcast implements Broadcast {
      * @param deliver The listener used when a message is delivered.
      */
     public BEBroadcast(int port, List<Host> hosts, int myId, BListener deliver) {
+        this(hosts, myId, deliver, listener -> Link.getLink(port, hosts, listener, myId));
+    }
+
+    /**
+     * Builds a best effort broadcaster on top of the link given by a factory.
+     *
+     * @param hosts       The list of hosts, used to broadcast messages.
+     * @param myId        The ID of the local host, to avoid sending the message
+     *                    locally via the network.
+     * @param deliver     The listener used when a message is delivered.
+     * @param linkFactory The function creating the link, given the listener to
+     *                    call once the link delivers a message.
+     */
+    BEBroadcast(List<Host> hosts, int myId, BListener deliver, Function<BListener, Link> linkFactory) {
         this.hosts = hosts;
         this.myId = myId;
         this.deliver = deliver;
-        this.link = Link.getLink(port, hosts, this::deliver, myId);
+        this.link = linkFactory.apply(this::deliver);
+        // The distant hosts are told how many messages the delivery buffer can still
+        // take, besides the echoes of the messages sent, so that they do not flood it.
+        this.link.setDeliveryBuffer(toHandle::remainingCapacity);
+
+        for (int sentFrom = 0; sentFrom <= hosts.size(); ++sentFrom) {
+            List<Integer> hostIds = new ArrayList<>();
+            for (Host host : hosts) {
+                if (host.getId() != myId && host.getId() != sentFrom) {
+                    hostIds.add(host.getId());
+                }
+            }
+            destinations.add(List.copyOf(hostIds));
+        }
     }
 
     /**
@@ -80,16 +122,14 @@ class BEBroadcast implements Broadcast {
 
     @Override
     public void broadcast(Message message) {
-        // Do not send message to where it originated from: unnecessary.
-        int sentFrom = message.getLastHop();
-        for (Host host : hosts) {
-            if (host.getId() != sentFrom || sentFrom == myId) {
-                if (myId != host.getId()) {
-                    link.send(message, host.getId());
-                } else {
-                    deliver.apply(message);
-                }
-            }
+        // Do not send message to where it originated from: unnecessary. The message is
+        // encoded once for all the destinations.
+        List<Integer> hostIds = destinations.get(message.getLastHop());
+        if (!hostIds.isEmpty()) {
+            link.broadcast(message, hostIds);
+        }
+        synchronized (deliverLock) {
+            deliver.apply(message);
         }
     }
 
@@ -115,7 +155,9 @@ class BEBroadcast implements Broadcast {
                 Thread.currentThread().interrupt();
                 return;
             }
-            deliver.apply(message);
+            synchronized (deliverLock) {
+                deliver.apply(message);
+            }
         }
     }
 }
@@ -5,12 +5,13 @@ import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.TreeMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import cs451.link.AbstractLink;
 import cs451.link.HostInfo;
@@ -38,6 +39,13 @@ public class BroadcastHandler {
      */
     private static int myId;
 
+    /**
+     * The number of payload bytes attached to each LCausal-broadcast message
+     * (-Dcs451.payloadSize=bytes, none by default, FIFO messages never carry one).
+     * A payload starts with the ID of its message, checked once it is delivered.
+     */
+    private static int payloadSize = 0;
+
     /**
      * The buffered writer used to write the required information to disk.
      */
@@ -51,7 +59,7 @@ public class BroadcastHandler {
     /**
      * The vector clock of the local message deliveries.
      */
-    private static final AtomicInteger delivering = new AtomicInteger();
+    private static final AtomicLong delivering = new AtomicLong();
 
     private BroadcastHandler() {
         // Everything is statically done in this class.
@@ -93,6 +101,7 @@ public class BroadcastHandler {
         } else {
             Map<Integer, List<Integer>> dependencies = new TreeMap<>();
             nbMessagesToBroadcast = readLCausalConfig(parser.config(), dependencies);
+            payloadSize = Math.max(0, Integer.getInteger("cs451.payloadSize", 0));
             broadcast = new LCausalBroadcast(myPort, parser.hosts(), myId, BroadcastHandler::writeDeliver,
                     BroadcastHandler::writeBroadcast, dependencies);
         }
@@ -104,6 +113,9 @@ public class BroadcastHandler {
      * @param message The delivered message.
      */
     private static void writeDeliver(Message message) {
+        if (payloadSize > 0) {
+            checkPayload(message);
+        }
         try {
             synchronized (writer) {
                 writer.write(String.format("d %d %d", message.getOriginId(), message.getMessageId()));
@@ -122,7 +134,7 @@ public class BroadcastHandler {
      *
      * @param messageId The ID of the local message.
      */
-    private static void writeBroadcast(int messageId) {
+    private static void writeBroadcast(long messageId) {
         try {
             synchronized (writer) {
                 writer.write(String.format("b %d", messageId));
@@ -165,7 +177,7 @@ public class BroadcastHandler {
         Map<Integer, HostInfo> hostInfo = AbstractLink.getHostInfo();
         int memoryLimit = 100_000 / hostInfo.size();
         for (int i = 1; i <= nbMessagesToBroadcast; ++i) {
-            broadcast.broadcast(Message.createMessage(myId, i));
+            broadcast.broadcast(withPayload(Message.createMessage(myId, i)));
             while (i - delivering.get() > memoryLimit) {
                 try {
                     Thread.sleep(100L);
@@ -177,6 +189,37 @@ public class BroadcastHandler {
         }
     }
 
+    /**
+     * Attach a payload of payloadSize bytes to a local message, starting with its
+     * ID.
+     *
+     * @param message The local message.
+     * @return The message with its payload.
+     */
+    private static Message withPayload(Message message) {
+        if (payloadSize == 0) {
+            return message;
+        }
+        byte[] payload = new byte[payloadSize];
+        if (payloadSize >= Long.BYTES) {
+            ByteBuffer.wrap(payload).putLong(message.getMessageId());
+        }
+        return message.withPayload(payload, 0, payloadSize);
+    }
+
+    /**
+     * Check that the payload of a delivered message is the one attached by its
+     * origin (only when messages carry a payload, see payloadSize).
+     *
+     * @param message The delivered message.
+     */
+    private static void checkPayload(Message message) {
+        if (message.getPayloadLength() != payloadSize
+                || (payloadSize >= Long.BYTES && message.getPayload().getLong(0) != message.getMessageId())) {
+            System.err.println("Unexpected payload for " + message);
+        }
+    }
+
     /**
      * Read the number of messages to be broadcast from the FIFO config file.
      *
@@ -208,7 +251,7 @@ public class BroadcastHandler {
             nbMessages = Integer.parseInt(line);
             int currentId = 1;
             while (null != (line = reader.readLine())) {
-                List<Integer> list = new LinkedList<>();
+                List<Integer> list = new ArrayList<>();
                 try (Scanner scanner = new Scanner(line)) {
                     while (scanner.hasNextInt()) {
                         int process = scanner.nextInt();
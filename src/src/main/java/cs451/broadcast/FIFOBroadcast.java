@@ -3,7 +3,7 @@ package cs451.broadcast;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
 
 import cs451.listener.BListener;
 import cs451.message.Message;
@@ -37,7 +37,7 @@ class FIFOBroadcast implements Broadcast {
      * The listener from the upper instance called when a local message is
      * effectively FIFO-broadcast to everyone.
      */
-    private final IntConsumer broadcastListener;
+    private final LongConsumer broadcastListener;
 
     /**
      * The ID of the local instance, used to keep track of which local messages are
@@ -55,7 +55,7 @@ class FIFOBroadcast implements Broadcast {
      * @param deliver           The listener used when a message is delivered.
      * @param broadcastListener The listener used when a local message is broadcast.
      */
-    public FIFOBroadcast(int port, List<Host> hosts, int myId, BListener deliver, IntConsumer broadcastListener) {
+    public FIFOBroadcast(int port, List<Host> hosts, int myId, BListener deliver, LongConsumer broadcastListener) {
         this.urBroadcast = new URBroadcast(port, hosts, myId, this::deliver);
         this.deliver = deliver;
         this.broadcastListener = broadcastListener;
@@ -83,15 +83,15 @@ class FIFOBroadcast implements Broadcast {
      */
     private void deliver(Message message) {
         int origin = message.getOriginId();
-        int messageId = message.getMessageId();
+        long messageId = message.getMessageId();
 
         // Check if new messages can be delivered.
-        int start = delivered.get(origin).getStateOfVc();
+        long start = delivered.get(origin).getStateOfVc();
         delivered.get(origin).addMember(messageId);
-        int end = delivered.get(origin).getStateOfVc();
+        long end = delivered.get(origin).getStateOfVc();
 
         // Reconstruct all buffered messages.
-        for (int i = start + 1; i <= end; ++i) {
+        for (long i = start + 1; i <= end; ++i) {
             if (message.getOriginId() == myId) {
                 broadcastListener.accept(i);
             }
@@ -1,11 +1,10 @@
 package cs451.broadcast;
 
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.IntConsumer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
 
 import cs451.listener.BListener;
 import cs451.message.Message;
@@ -25,14 +24,15 @@ public class LCausalBroadcast implements Broadcast {
 
     /**
      * The local message tallying: used to reorder messages that have been
-     * URB-delivered. It stores the dependencies mentioned in the message.
+     * URB-delivered. It stores the messages themselves, whose dependencies are
+     * checked in place.
      */
-    private final Map<Integer, Map<Integer, List<Integer>>> pending = new TreeMap<>();
+    private final Map<Integer, Map<Long, Message>> pending = new TreeMap<>();
 
     /**
      * The vector clocks of the current delivery of each process.
      */
-    private final Map<Integer, AtomicInteger> delivered = new TreeMap<>();
+    private final Map<Integer, AtomicLong> delivered = new TreeMap<>();
 
     /**
      * The listener from the upper instance called when a message is effectively
@@ -44,7 +44,7 @@ public class LCausalBroadcast implements Broadcast {
      * The listener from the upper instance called when a local message is
      * effectively FIFO-broadcast to everyone.
      */
-    private final IntConsumer broadcastListener;
+    private final LongConsumer broadcastListener;
 
     /**
      * The ID of the local instance, used to keep track of which local messages are
@@ -69,7 +69,7 @@ public class LCausalBroadcast implements Broadcast {
      * @param broadcastListener The listener used when a local message is broadcast.
      * @param dependencies      The map of inter-process dependencies.
      */
-    public LCausalBroadcast(int port, List<Host> hosts, int myId, BListener deliver, IntConsumer broadcastListener,
+    public LCausalBroadcast(int port, List<Host> hosts, int myId, BListener deliver, LongConsumer broadcastListener,
             Map<Integer, List<Integer>> dependencies) {
         this.urBroadcast = new URBroadcast(port, hosts, myId, this::deliver);
         this.deliver = deliver;
@@ -81,18 +81,19 @@ public class LCausalBroadcast implements Broadcast {
             pending.put(host.getId(), new TreeMap<>());
         }
         for (Host host : hosts) {
-            delivered.put(host.getId(), new AtomicInteger(0));
+            delivered.put(host.getId(), new AtomicLong(0));
         }
     }
 
     @Override
     public void broadcast(Message message) {
-        List<Integer> dependencyIds = new LinkedList<>();
         List<Integer> dependency = dependencies.get(myId);
+        long[] dependencyIds = new long[dependency.size()];
 
         synchronized (dependencies) {
+            int j = 0;
             for (Integer i : dependency) {
-                dependencyIds.add(delivered.get(i).get());
+                dependencyIds[j++] = delivered.get(i).get();
             }
             broadcastListener.accept(message.getMessageId());
         }
@@ -112,7 +113,7 @@ public class LCausalBroadcast implements Broadcast {
      * @param message The message to deliver.
      */
     private void deliver(Message message) {
-        pending.get(message.getOriginId()).put(message.getMessageId(), message.getDependencies());
+        pending.get(message.getOriginId()).put(message.getMessageId(), message);
         int count = 1;
         while (count > 0) {
             count = 0;
@@ -129,10 +130,10 @@ public class LCausalBroadcast implements Broadcast {
      * @return The number of messages delivered from the given process.
      */
     private int checkPendingQueue(int originId) {
-        Map<Integer, List<Integer>> messages = pending.get(originId);
+        Map<Long, Message> messages = pending.get(originId);
 
         List<Integer> dependency = dependencies.get(originId);
-        int nextIdToDeliver = delivered.get(originId).get();
+        long nextIdToDeliver = delivered.get(originId).get();
         int nbMessagesDelivered = 0;
         while (!messages.isEmpty()) {
             nextIdToDeliver += 1;
@@ -143,9 +144,10 @@ public class LCausalBroadcast implements Broadcast {
             }
 
             // Check the dependencies on *other* processes (LCausal)
-            for (int i = 0; i < dependency.size(); ++i) {
-                int deliveredId = delivered.get(dependency.get(i)).get();
-                int requiredId = messages.get(nextIdToDeliver).get(i);
+            Message next = messages.get(nextIdToDeliver);
+            for (int i = 0; i < next.getNbDependencies(); ++i) {
+                long deliveredId = delivered.get(dependency.get(i)).get();
+                long requiredId = next.getDependency(i);
                 if (deliveredId < requiredId) {
                     return nbMessagesDelivered;
                 }
@@ -154,7 +156,7 @@ public class LCausalBroadcast implements Broadcast {
             // Deliver next message
             synchronized (dependencies) {
                 delivered.get(originId).incrementAndGet();
-                deliver.apply(Message.createMessage(originId, nextIdToDeliver));
+                deliver.apply(next);
             }
             messages.remove(nextIdToDeliver); // garbage collecting
             nbMessagesDelivered += 1;
@@ -86,7 +86,7 @@ class URBroadcast implements Broadcast {
      */
     private void deliver(Message message) {
         int origin = message.getOriginId();
-        int messageId = message.getMessageId();
+        long messageId = message.getMessageId();
         if (!delivered.get(origin).contains(messageId)) {
             // If not already delivered, broadcast new message, or check if the
             // number of acknowledgements is good to deliver said message.
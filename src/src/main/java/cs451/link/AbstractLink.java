@@ -85,13 +85,22 @@ public abstract class AbstractLink implements Link {
                 int i = host.getId();
                 if (i != getMyId()) {
                     HostInfo hostI;
+                    // If the host advertises a port range, always use the same port of the
+                    // range, so that all our traffic is handled by the same receiving thread.
+                    int port = host.getPort() + getMyId() % host.getPortCount();
                     try {
-                        hostI = new HostInfo(InetAddress.getByName(host.getIp()), host.getPort(), hosts.size());
+                        hostI = new HostInfo(InetAddress.getByName(host.getIp()), port, hosts.size());
                     } catch (UnknownHostException e) {
                         System.err.println("Invalid IP address given: " + host.getIp());
                         return;
                     }
                     hostInfo.put(i, hostI);
+                    LinkMetrics.register("sl.host" + i + ".rtoUs", hostI::getTimeoutUs);
+                    LinkMetrics.register("sl.host" + i + ".srttUs", hostI::getSmoothedRttUs);
+                    LinkMetrics.register("sl.host" + i + ".cwnd", hostI::getCongestionWindow);
+                    LinkMetrics.register("sl.host" + i + ".lossEvents", hostI::getLossEvents);
+                    LinkMetrics.register("sl.host" + i + ".rwnd", hostI::getAdvertisedWindow);
+                    LinkMetrics.register("sl.host" + i + ".budgetShare", hostI::getBudgetShare);
                 }
             }
         }
@@ -0,0 +1,254 @@
+package cs451.link;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sending loop of the fair-loss link. Datagrams are taken from the sending
+ * queues in bulk, grouped by destination, and all the datagrams of a given
+ * destination are transmitted back to back.
+ *
+ * Acks have their own queue, a fast lane that is always emptied first, even
+ * between two data datagrams of the same batch: this way, acks never wait
+ * behind a backlog of (large) data datagrams, and the RTT seen by distant hosts
+ * stays accurate.
+ */
+class BatchSender {
+
+    /**
+     * The maximum number of data datagrams taken from the queue at once.
+     */
+    private static final int MAX_BATCH = 1 << 8;
+
+    /**
+     * Transmits one datagram on the network.
+     */
+    @FunctionalInterface
+    interface Transmitter {
+
+        /**
+         * Transmit the given datagram.
+         *
+         * @param datagram The datagram to transmit.
+         * @throws IOException If the datagram could not be transmitted.
+         */
+        void transmit(OutgoingDatagram datagram) throws IOException;
+    }
+
+    /**
+     * The queue of acks, always emptied first.
+     */
+    private final BlockingQueue<OutgoingDatagram> ackQueue = new LinkedBlockingQueue<>();
+
+    /**
+     * The queue of data datagrams.
+     */
+    private final BlockingQueue<OutgoingDatagram> dataQueue = new LinkedBlockingQueue<>();
+
+    /**
+     * The datagrams of the current batch, grouped by destination (indexed by host
+     * ID).
+     */
+    private final List<List<OutgoingDatagram>> perHost = new ArrayList<>();
+
+    /**
+     * The function actually transmitting a datagram.
+     */
+    private final Transmitter transmitter;
+
+    /**
+     * The sending thread, when it is parked waiting for datagrams.
+     */
+    private volatile Thread waiting = null;
+
+    // Batch-size statistics.
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong datagrams = new AtomicLong();
+    private final AtomicLong maxBatch = new AtomicLong();
+    private final AtomicLong unreachable = new AtomicLong();
+
+    /**
+     * The queuing statistics of each lane.
+     */
+    private final LaneStats ackStats = new LaneStats();
+    private final LaneStats dataStats = new LaneStats();
+
+    /**
+     * Create a batch sender, and register its statistics in the link metrics.
+     *
+     * @param numHosts    The total number of hosts in the topology.
+     * @param transmitter The function actually transmitting a datagram.
+     */
+    public BatchSender(int numHosts, Transmitter transmitter) {
+        this.transmitter = transmitter;
+        for (int i = 0; i <= numHosts; ++i) {
+            perHost.add(new ArrayList<>());
+        }
+
+        LinkMetrics.register("fl.send.batches", batches::get);
+        LinkMetrics.register("fl.send.datagrams", datagrams::get);
+        LinkMetrics.register("fl.send.maxBatch", maxBatch::get);
+        LinkMetrics.register("fl.send.avgBatch", () -> datagrams.get() / Math.max(1, batches.get()));
+        LinkMetrics.register("fl.send.unreachable", unreachable::get);
+        ackStats.register("fl.send.ack", ackQueue);
+        dataStats.register("fl.send.data", dataQueue);
+    }
+
+    /**
+     * Schedule the sending of a datagram, in the lane corresponding to its type.
+     *
+     * @param datagram The datagram to send.
+     */
+    public void send(OutgoingDatagram datagram) {
+        (datagram.isAck() ? ackQueue : dataQueue).add(datagram);
+        Thread sendingThread = waiting;
+        if (sendingThread != null) {
+            LockSupport.unpark(sendingThread);
+        }
+    }
+
+    /**
+     * Low level packet sending: takes batches from the queues and transmits them,
+     * destination by destination, acks first.
+     */
+    public void run() {
+        List<OutgoingDatagram> batch = new ArrayList<>(MAX_BATCH);
+        while (!Thread.currentThread().isInterrupted()) {
+            flushAcks(batch);
+            dataQueue.drainTo(batch, MAX_BATCH);
+            if (batch.isEmpty()) {
+                waitForDatagrams();
+                continue;
+            }
+            recordBatch(batch.size());
+
+            groupByHost(batch);
+            for (List<OutgoingDatagram> toSend : perHost) {
+                for (OutgoingDatagram datagram : toSend) {
+                    if (!ackQueue.isEmpty()) {
+                        flushAcks(batch);
+                    }
+                    transmit(datagram, dataStats);
+                }
+                toSend.clear();
+            }
+        }
+    }
+
+    /**
+     * Transmit all the waiting acks.
+     *
+     * @param batch An empty list, used to drain the ack queue (left empty).
+     */
+    private void flushAcks(List<OutgoingDatagram> batch) {
+        if (ackQueue.drainTo(batch) == 0) {
+            return;
+        }
+        for (OutgoingDatagram datagram : batch) {
+            transmit(datagram, ackStats);
+        }
+        batch.clear();
+    }
+
+    /**
+     * Dispatch the given datagrams in the per-host lists, and empty the given list.
+     *
+     * @param batch The list of datagrams to dispatch.
+     */
+    private void groupByHost(List<OutgoingDatagram> batch) {
+        for (OutgoingDatagram datagram : batch) {
+            perHost.get(datagram.getHostId()).add(datagram);
+        }
+        batch.clear();
+    }
+
+    /**
+     * Park the sending thread until a new datagram is queued.
+     */
+    private void waitForDatagrams() {
+        waiting = Thread.currentThread();
+        if (ackQueue.isEmpty() && dataQueue.isEmpty()) {
+            LockSupport.park(this);
+        }
+        waiting = null;
+    }
+
+    /**
+     * Transmit a single datagram, and release the reference held on its packet. A
+     * distant host that is down is not an error for a fair-loss link: the
+     * datagram is simply lost. Any other error is logged, and only loses the
+     * datagram, so that the sending thread keeps running.
+     *
+     * @param datagram The datagram to transmit.
+     * @param stats    The statistics of the lane of the datagram.
+     */
+    private void transmit(OutgoingDatagram datagram, LaneStats stats) {
+        stats.record(datagram);
+        try {
+            transmitter.transmit(datagram);
+        } catch (PortUnreachableException e) {
+            unreachable.incrementAndGet();
+        } catch (Exception e) {
+            System.err.println("Cannot send packets!");
+            e.printStackTrace();
+        } finally {
+            datagram.getPacket().release();
+        }
+    }
+
+    /**
+     * Update the batch-size statistics.
+     *
+     * @param size The size of the new batch.
+     */
+    private void recordBatch(int size) {
+        batches.incrementAndGet();
+        datagrams.addAndGet(size);
+        if (size > maxBatch.get()) {
+            maxBatch.set(size);
+        }
+    }
+
+    /**
+     * Queuing statistics of a lane: number of datagrams sent, and time they spent
+     * in the queue.
+     */
+    private static class LaneStats {
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong totalLatencyNs = new AtomicLong();
+        private final AtomicLong maxLatencyNs = new AtomicLong();
+
+        /**
+         * Register the statistics of the lane in the link metrics.
+         *
+         * @param name  The name of the lane.
+         * @param queue The queue of the lane.
+         */
+        private void register(String name, BlockingQueue<OutgoingDatagram> queue) {
+            LinkMetrics.register(name + ".queued", queue::size);
+            LinkMetrics.register(name + ".sent", sent::get);
+            LinkMetrics.register(name + ".avgLatencyUs", () -> totalLatencyNs.get() / Math.max(1, sent.get()) / 1000);
+            LinkMetrics.register(name + ".maxLatencyUs", () -> maxLatencyNs.get() / 1000);
+        }
+
+        /**
+         * Record a datagram leaving the queue.
+         *
+         * @param datagram The datagram about to be transmitted.
+         */
+        private void record(OutgoingDatagram datagram) {
+            long latency = System.nanoTime() - datagram.getQueuedAtNs();
+            sent.incrementAndGet();
+            totalLatencyNs.addAndGet(latency);
+            if (latency > maxLatencyNs.get()) {
+                maxLatencyNs.set(latency);
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package cs451.link;
+
+/**
+ * AIMD congestion control of the packets sent to a distant host, in packets:
+ * the congestion window starts small and doubles every RTT (slow start) until
+ * the first loss, then grows by one packet every RTT (additive increase), and
+ * is halved on each loss event (multiplicative decrease). A loss is either a
+ * retransmission timeout, or a packet left behind by the selective acks of
+ * more than DUPLICATE_THRESHOLD packets sent after it. All the losses of the
+ * packets sent before the last decrease belong to the same event, so that the
+ * window is only halved once per window of data.
+ */
+class CongestionControl {
+
+    /**
+     * The initial congestion window (as in RFC 6928).
+     */
+    private static final int INITIAL_WINDOW = 10;
+
+    /**
+     * The minimum congestion window.
+     */
+    static final int MIN_WINDOW = 2;
+
+    /**
+     * The number of packets that must be acked after an unacked one before it is
+     * deemed lost (as the duplicate ack threshold of TCP).
+     */
+    static final int DUPLICATE_THRESHOLD = 3;
+
+    /**
+     * The maximum congestion window.
+     */
+    private final int maxWindow;
+
+    /**
+     * The congestion window, in packets (fractional, for additive increase).
+     */
+    private double window;
+
+    /**
+     * The slow start threshold: the window grows exponentially below it.
+     */
+    private double threshold;
+
+    /**
+     * The highest packet number sent when the window was last decreased: the
+     * losses of the packets up to it do not decrease it again.
+     */
+    private int recoveryPoint = 0;
+
+    /**
+     * The number of times the window was decreased.
+     */
+    private long lossEvents = 0;
+
+    /**
+     * Create the congestion control of a distant host, in slow start.
+     *
+     * @param maxWindow The maximum congestion window, in packets.
+     */
+    public CongestionControl(int maxWindow) {
+        this.maxWindow = Math.max(MIN_WINDOW, maxWindow);
+        this.window = Math.min(INITIAL_WINDOW, this.maxWindow);
+        this.threshold = this.maxWindow;
+    }
+
+    /**
+     * Grow the window with newly acked packets: by one packet per acked packet in
+     * slow start, and by one packet per window of acked packets afterwards.
+     *
+     * @param count The number of newly acked packets.
+     */
+    public synchronized void onAcked(int count) {
+        for (int i = 0; i < count && window < maxWindow; ++i) {
+            window += window < threshold ? 1 : 1 / window;
+        }
+        window = Math.min(window, maxWindow);
+    }
+
+    /**
+     * Halve the window on a loss, unless the lost packet was sent before the last
+     * decrease.
+     *
+     * @param packetNumber     The packet number of the lost packet.
+     * @param lastPacketNumber The highest packet number sent so far.
+     * @return Whether the window was decreased.
+     */
+    public synchronized boolean onLoss(int packetNumber, int lastPacketNumber) {
+        if (packetNumber <= recoveryPoint) {
+            return false;
+        }
+        recoveryPoint = lastPacketNumber;
+        threshold = Math.max(MIN_WINDOW, window / 2);
+        window = threshold;
+        lossEvents += 1;
+        return true;
+    }
+
+    /**
+     * Get the congestion window, i.e. the number of packets that may wait for their
+     * ack.
+     *
+     * @return The congestion window, in packets.
+     */
+    public synchronized int getWindow() {
+        return (int) window;
+    }
+
+    /**
+     * Get the number of loss events, i.e. of decreases of the window.
+     *
+     * @return The number of loss events.
+     */
+    public synchronized long getLossEvents() {
+        return lossEvents;
+    }
+}
@@ -0,0 +1,67 @@
+package cs451.link;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import cs451.message.Message;
+import cs451.message.MessageView;
+
+/**
+ * The fragmented messages sent to one host whose fragments are not all acked
+ * yet. The acked packets are handed up as if the host had sent their messages
+ * back (echoes): a fragmented message is echoed once all its fragments were
+ * acked. Its fragments are only counted, not reassembled, as the message itself
+ * is kept until then.
+ */
+class Echoes {
+
+    /**
+     * The messages waiting for the acks of their fragments, by origin ID and
+     * message ID.
+     */
+    private final Map<Integer, Map<Long, Pending>> pending = new HashMap<>();
+
+    /**
+     * Expect the echoes of the fragments of a message, about to be sent.
+     *
+     * @param message     The complete message.
+     * @param nbFragments The number of fragments of the message.
+     */
+    public synchronized void expect(Message message, int nbFragments) {
+        Pending p = pending.computeIfAbsent(message.getOriginId(), k -> new HashMap<>())
+                .computeIfAbsent(message.getMessageId(), k -> new Pending(message));
+        p.remaining += nbFragments;
+    }
+
+    /**
+     * Count the echo of a fragment.
+     *
+     * @param fragment The echoed fragment.
+     * @return The complete message, once all its fragments were echoed, or null.
+     */
+    public synchronized Message echo(MessageView fragment) {
+        Map<Long, Pending> ofOrigin = pending.get(fragment.getOriginId());
+        Pending p = ofOrigin == null ? null : ofOrigin.get(fragment.getMessageId());
+        if (p == null) {
+            return null;
+        }
+        p.remaining -= 1;
+        if (p.remaining > 0) {
+            return null;
+        }
+        ofOrigin.remove(fragment.getMessageId());
+        return p.message;
+    }
+
+    /**
+     * A message waiting for the acks of its fragments.
+     */
+    private static class Pending {
+        private final Message message;
+        private int remaining = 0;
+
+        private Pending(Message message) {
+            this.message = message;
+        }
+    }
+}
@@ -3,56 +3,333 @@ package cs451.link;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 
+import cs451.listener.HListener;
 import cs451.listener.PListener;
+import cs451.message.Compressor;
 import cs451.message.Message;
 import cs451.message.Packet;
+import cs451.message.PacketHeader;
 import cs451.parser.Host;
 
 /**
  * Fair-loss link abstraction. Implements the fair-loss, finite duplication and
  * no creation properties.
+ *
+ * Two modes are available (see Link.USE_NIO): a blocking DatagramSocket, or a
+ * non-blocking DatagramChannel draining all pending datagrams at each wakeup
+ * into the pre-allocated slots of a ReceivePipeline. The header of each received
+ * datagram is first read in place and given to the header filter (see
+ * setHeaderFilter), so that duplicates are dropped before being deserialized.
+ * Received packets are then handed to the decoding listener (acks), then to the
+ * delivery listener: in
+ * NIO mode, each in its own pipeline stage, and in blocking mode, one after the
+ * other in the socket thread. In both modes, the received bytes live in reused
+ * arrays: the upper layers must not keep a reference to a packet once the
+ * delivery listener returns.
+ *
+ * The receiving side can be sharded over several sockets, each with its own
+ * thread. Each distant host always reaches the same socket (the kernel hashes
+ * the sender's address with SO_REUSEPORT, and the sender picks a fixed port of
+ * an advertised range otherwise), so that the state of a given host is only
+ * touched by one receiving thread.
+ *
+ * Outgoing packets are sent in batches by a BatchSender: from the first socket
+ * in blocking mode, and from channels connected to each destination in NIO
+ * mode.
+ *
+ * If a multicast group is configured (see Link.MULTICAST_GROUP), the link also
+ * joins it on the interface of the local host, with loopback enabled so that
+ * processes of the same machine receive each other's datagrams. Multicast
+ * packets are received by the first shard (NIO mode) or by a thread of their
+ * own (blocking mode).
+ *
+ * If shared memory is enabled (see Link.USE_SHM), the datagrams exchanged with
+ * the processes of the same machine go through a SharedMemory transport
+ * instead, received by a pipeline (NIO mode) or a thread (blocking mode) of
+ * their own.
  */
-class FairLossLink extends AbstractLink {
+class FairLossLink extends AbstractLink implements Transport {
 
     /**
-     * The UDP socket.
+     * The size of the kernel socket buffers, matching the total window of the
+     * link (the kernel caps it at its own maximum anyway).
      */
-    private final DatagramSocket socket;
+    private static final int SOCKET_BUFFER_SIZE = (int) Math.min(Integer.MAX_VALUE,
+            (long) Link.WINDOW_SIZE * Packet.MAX_PAYLOAD_SIZE);
 
     /**
-     * The sending queue, which avoids concurrency on the sending part of the
-     * socket.
+     * The pseudo host ID of the datagrams sent to the multicast group.
      */
-    private final BlockingQueue<DatagramPacket> sendQueue = new LinkedBlockingQueue<>();
+    private static final int MULTICAST_HOST_ID = 0;
+
+    /**
+     * The UDP sockets, one per receiving shard (blocking mode only).
+     */
+    private final DatagramSocket[] sockets;
+
+    /**
+     * The UDP channels, one per receiving shard (NIO mode only).
+     */
+    private final DatagramChannel[] channels;
+
+    /**
+     * The listener called on each received packet, before the delivery listener.
+     */
+    private final PListener decoder;
+
+    /**
+     * The filter called on the header of each received datagram, or null if none
+     * was set yet.
+     */
+    private volatile HListener headerFilter = null;
+
+    /**
+     * The channels used to send datagrams, one per distant host, connected to it
+     * (NIO mode only, indexed by host ID).
+     */
+    private final DatagramChannel[] sendChannels;
+
+    /**
+     * The multicast group, or null if multicast is disabled.
+     */
+    private final InetSocketAddress multicastGroup;
+
+    /**
+     * The socket joined to the multicast group, also used to send to the group
+     * (blocking mode only).
+     */
+    private MulticastSocket multicastSocket = null;
+
+    /**
+     * The non-blocking channel joined to the multicast group (NIO mode only).
+     */
+    private DatagramChannel multicastChannel = null;
+
+    /**
+     * The channel used to send datagrams to the multicast group, connected to it
+     * (NIO mode only).
+     */
+    private DatagramChannel multicastSendChannel = null;
+
+    /**
+     * The shared-memory transport towards the processes of the same machine, or
+     * null if it is disabled.
+     */
+    private final SharedMemory sharedMemory;
+
+    /**
+     * The buffer in which packets are serialized before being transmitted (only
+     * used by the sending thread). Direct in NIO mode, backed by the array of
+     * sendPacket otherwise.
+     */
+    private final ByteBuffer sendBuffer;
+
+    /**
+     * The packet used to transmit datagrams on the socket (only used by the sending
+     * thread).
+     */
+    private final DatagramPacket sendPacket = new DatagramPacket(new byte[Packet.MAX_PAYLOAD_SIZE],
+            Packet.MAX_PAYLOAD_SIZE);
+
+    /**
+     * The compressor of the packet bodies (only used by the sending thread), or
+     * null if compression is off.
+     */
+    private final Compressor compressor;
+
+    /**
+     * The sending loop, which avoids concurrency on the sending part of the
+     * sockets.
+     */
+    private final BatchSender sender;
 
     /**
      * Create a fair-loss link.
      *
      * @param port     The port number of the socket.
      * @param hosts    The complete list of hosts of the network.
-     * @param listener The listener to call once a message is delivered.
+     * @param decoder  The listener to call once a packet is received, before it is
+     *                 delivered (it should not do any time-consuming work).
+     * @param listener The listener to call once a packet is delivered.
      * @param myId     The ID of the local host.
      */
-    public FairLossLink(int port, List<Host> hosts, PListener listener, int myId) {
+    public FairLossLink(int port, List<Host> hosts, PListener decoder, PListener listener, int myId) {
         super(listener, myId, hosts);
+        this.decoder = decoder;
+
+        // Either one socket per port of the advertised range, or several sockets
+        // sharing the same port.
+        int portCount = 1;
+        for (Host host : hosts) {
+            if (host.getId() == myId) {
+                portCount = host.getPortCount();
+            }
+        }
+        boolean reusePort = portCount == 1 && Link.RECEIVE_SHARDS > 1;
+        int nbShards = reusePort ? Link.RECEIVE_SHARDS : portCount;
+
+        sockets = new DatagramSocket[nbShards];
+        channels = new DatagramChannel[nbShards];
+        sendChannels = new DatagramChannel[hosts.size() + 1];
+        multicastGroup = parseMulticastGroup();
         try {
-            socket = new DatagramSocket(port);
-        } catch (SocketException e) {
+            for (int i = 0; i < nbShards; ++i) {
+                InetSocketAddress address = new InetSocketAddress(reusePort ? port : port + i);
+                if (Link.USE_NIO) {
+                    DatagramChannel channel = DatagramChannel.open();
+                    channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+                    channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, reusePort);
+                    channel.bind(address);
+                    channel.configureBlocking(false);
+                    channels[i] = channel;
+                } else {
+                    DatagramSocket socket = new DatagramSocket(null);
+                    socket.setOption(StandardSocketOptions.SO_REUSEPORT, reusePort);
+                    socket.bind(address);
+                    sockets[i] = socket;
+                }
+            }
+            // Datagrams are sent on blocking channels connected to each destination, on
+            // an ephemeral port, so that they never "steal" the incoming traffic.
+            for (int i = 1; Link.USE_NIO && i <= hosts.size(); ++i) {
+                if (i != myId) {
+                    DatagramChannel channel = DatagramChannel.open();
+                    channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+                    channel.connect(getHostInfo(i).getSocketAddress());
+                    sendChannels[i] = channel;
+                }
+            }
+            if (multicastGroup != null) {
+                joinMulticastGroup(hosts);
+            }
+            SharedMemory shm = Link.USE_SHM ? new SharedMemory(hosts, myId) : null;
+            sharedMemory = shm != null && shm.hasLocalHosts() ? shm : null;
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
-        // Create 2 threads: one for sending packets, another to deliver incoming
-        // packets.
-        Executor executor = Executors.newFixedThreadPool(2);
-        executor.execute(this::sendPackets);
-        executor.execute(this::deliver);
+        sendBuffer = Link.USE_NIO ? ByteBuffer.allocateDirect(Packet.MAX_PAYLOAD_SIZE)
+                : ByteBuffer.wrap(sendPacket.getData());
+        compressor = createCompressor();
+        sender = new BatchSender(hosts.size(), Link.USE_NIO ? this::transmitNio : this::transmit);
+
+        // Create 1 thread for sending packets, and per shard (and for shared memory)
+        // either 1 thread to deliver incoming packets, or 3 threads for the stages of
+        // the pipeline (plus 1 thread for the multicast socket in blocking mode).
+        int nbReceivers = nbShards + (sharedMemory == null ? 0 : 1);
+        Executor executor = Executors.newFixedThreadPool(1 + nbReceivers * (Link.USE_NIO ? 3 : 1)
+                + (multicastSocket == null ? 0 : 1));
+        executor.execute(sender::run);
+        for (int i = 0; i < nbShards; ++i) {
+            int shard = i;
+            if (Link.USE_NIO) {
+                ReceivePipeline pipeline = new ReceivePipeline("fl.shard" + shard, this::filterHeader, decoder,
+                        this::handleListener, myId);
+                executor.execute(pipeline::dispatch);
+                executor.execute(pipeline::decode);
+                executor.execute(() -> deliverNio(shard, pipeline));
+            } else {
+                executor.execute(() -> deliver(sockets[shard]));
+            }
+        }
+        if (multicastSocket != null) {
+            executor.execute(() -> deliver(multicastSocket));
+        }
+        if (sharedMemory != null && Link.USE_NIO) {
+            ReceivePipeline pipeline = new ReceivePipeline("fl.shm", this::filterHeader, decoder, this::handleListener,
+                    myId);
+            executor.execute(pipeline::dispatch);
+            executor.execute(pipeline::decode);
+            executor.execute(() -> deliverShm(pipeline));
+        } else if (sharedMemory != null) {
+            executor.execute(this::deliverShm);
+        }
+    }
+
+    /**
+     * Parse the multicast group of the configuration, of the form address:port.
+     *
+     * @return The multicast group, or null if multicast is disabled.
+     */
+    private static InetSocketAddress parseMulticastGroup() {
+        if (Link.MULTICAST_GROUP == null) {
+            return null;
+        }
+        int separator = Link.MULTICAST_GROUP.lastIndexOf(':');
+        try {
+            InetAddress address = InetAddress.getByName(Link.MULTICAST_GROUP.substring(0, separator));
+            int port = Integer.parseInt(Link.MULTICAST_GROUP.substring(separator + 1));
+            if (!address.isMulticastAddress()) {
+                throw new IllegalArgumentException(address + " is not a multicast address.");
+            }
+            return new InetSocketAddress(address, port);
+        } catch (IOException | NumberFormatException | StringIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid multicast group: " + Link.MULTICAST_GROUP, e);
+        }
+    }
+
+    /**
+     * Join the multicast group on the interface of the local host. All the
+     * processes of a machine bind the same port (with SO_REUSEADDR), and each of
+     * them receives a copy of every datagram.
+     *
+     * @param hosts The complete list of hosts of the network.
+     * @throws IOException If the group cannot be joined.
+     */
+    private void joinMulticastGroup(List<Host> hosts) throws IOException {
+        NetworkInterface networkInterface = null;
+        for (Host host : hosts) {
+            if (host.getId() == getMyId()) {
+                networkInterface = NetworkInterface.getByInetAddress(InetAddress.getByName(host.getIp()));
+            }
+        }
+        if (networkInterface == null) {
+            throw new IOException("No network interface found for the local host.");
+        }
+
+        if (Link.USE_NIO) {
+            multicastChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+            multicastChannel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+            multicastChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            multicastChannel.bind(new InetSocketAddress(multicastGroup.getPort()));
+            multicastChannel.join(multicastGroup.getAddress(), networkInterface);
+            multicastChannel.configureBlocking(false);
+
+            multicastSendChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+            multicastSendChannel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+            multicastSendChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            multicastSendChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            multicastSendChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+            multicastSendChannel.connect(multicastGroup);
+        } else {
+            multicastSocket = new MulticastSocket(null);
+            multicastSocket.setReuseAddress(true);
+            multicastSocket.bind(new InetSocketAddress(multicastGroup.getPort()));
+            multicastSocket.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            multicastSocket.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            multicastSocket.setTimeToLive(1);
+            multicastSocket.joinGroup(multicastGroup, networkInterface);
+        }
+    }
+
+    @Override
+    public boolean isMulticast() {
+        return multicastGroup != null;
     }
 
     @Override
@@ -60,60 +337,220 @@ class FairLossLink extends AbstractLink {
         System.err.println("FL-Link: send packets, not messages!");
     }
 
+    @Override
+    public void send(Packet packet, int hostId) {
+        Packet toSend = packet.changeLastHop(getMyId());
+        // The sending thread holds its own reference to the frame of the packet until
+        // it is transmitted.
+        toSend.retain();
+        sender.send(new OutgoingDatagram(toSend, hostId, getHostInfo(hostId)));
+    }
+
+    @Override
+    public void multicast(Packet packet) {
+        packet.retain();
+        sender.send(new OutgoingDatagram(packet, MULTICAST_HOST_ID, null));
+    }
+
+    @Override
+    public void setHeaderFilter(HListener filter) {
+        headerFilter = filter;
+    }
+
     /**
-     * Send a message through a link.
+     * Call the header filter, if any, on the header of a received datagram.
      *
-     * @param package The package to be sent.
-     * @param hostId  The ID of the recipient.
+     * @param header The header of the received datagram.
+     * @return Whether the datagram must be deserialized and delivered.
      */
-    public void send(Packet packet, int hostId) {
-        byte[] buf = packet.changeLastHop(getMyId()).serialize();
-        HostInfo host = getHostInfo(hostId);
-        try {
-            sendQueue.put(new DatagramPacket(buf, buf.length, host.getAddress(), host.getPort()));
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
+    private boolean filterHeader(PacketHeader header) {
+        HListener filter = headerFilter;
+        return filter == null || filter.apply(header);
     }
 
     @Override
-    public void sendRange(int hostId, int originId, int messageId) {
+    public void broadcast(Message message, List<Integer> hostIds) {
+        System.err.println("FL-Link: send packets, not messages!");
+    }
+
+    @Override
+    public void sendRange(int hostId, int originId, long messageId) {
         System.err.println("FL-Link: the sendRange function is not designed for this level of Link.");
     }
 
     /**
      * Receive, de-serialize and deliver incoming packets (to the next layer).
+     *
+     * @param socket The socket to receive from.
      */
-    private void deliver() {
-        DatagramPacket datagramPacket;
-        byte[] buf;
+    private void deliver(DatagramSocket socket) {
+        byte[] buf = new byte[Packet.MAX_PAYLOAD_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(buf);
+        PacketHeader header = new PacketHeader();
+        DatagramPacket datagramPacket = new DatagramPacket(buf, buf.length);
         while (true) {
-            buf = new byte[Packet.MAX_PAYLOAD_SIZE];
-            datagramPacket = new DatagramPacket(buf, buf.length);
+            datagramPacket.setLength(buf.length);
             try {
                 socket.receive(datagramPacket);
             } catch (IOException e) {
                 System.err.println("Cannot receive packets!");
                 e.printStackTrace();
+                continue;
+            }
+            buffer.limit(datagramPacket.getLength());
+            if (!header.read(buffer, getMyId()) || !filterHeader(header)) {
+                continue;
+            }
+            Packet packet = Packet.deserialize(buf, datagramPacket.getLength(), getMyId());
+            if (packet != null) {
+                decoder.apply(packet);
+                handleListener(packet);
             }
-            Packet packet = Packet.deserialize(datagramPacket.getData());
-            handleListener(packet);
         }
     }
 
     /**
-     * Low level packet sending: takes from the queue and uses the socket, to avoid
-     * any concurrency problem.
+     * Receive incoming packets using the non-blocking channel (and the multicast
+     * channel, for the first shard), and submit them to the receiving pipeline:
+     * all pending datagrams are drained at each wakeup.
+     *
+     * @param shard    The index of the channel to receive from.
+     * @param pipeline The pipeline decoding and delivering the received packets.
      */
-    private void sendPackets() {
+    private void deliverNio(int shard, ReceivePipeline pipeline) {
+        Selector selector;
+        try {
+            selector = Selector.open();
+            channels[shard].register(selector, SelectionKey.OP_READ);
+            if (shard == 0 && multicastChannel != null) {
+                multicastChannel.register(selector, SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
         while (true) {
             try {
-                DatagramPacket packet = sendQueue.take();
-                socket.send(packet);
-            } catch (Exception e) {
-                System.err.println("Cannot send packets! (probably out of memory)");
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    while (true) {
+                        ReceivePipeline.Slot slot = pipeline.acquire();
+                        if (channel.receive(slot.getBuffer()) == null) {
+                            pipeline.cancel(slot);
+                            break;
+                        }
+                        pipeline.submit(slot);
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (IOException e) {
+                System.err.println("Cannot receive packets!");
                 e.printStackTrace();
             }
         }
     }
+
+    /**
+     * Receive incoming packets from shared memory, and submit them to the
+     * receiving pipeline.
+     *
+     * @param pipeline The pipeline decoding and delivering the received packets.
+     */
+    private void deliverShm(ReceivePipeline pipeline) {
+        while (true) {
+            ReceivePipeline.Slot slot = pipeline.acquire();
+            if (sharedMemory.receive(slot.getBuffer())) {
+                pipeline.submit(slot);
+            } else {
+                pipeline.cancel(slot);
+            }
+        }
+    }
+
+    /**
+     * Receive, de-serialize and deliver incoming packets from shared memory (to
+     * the next layer).
+     */
+    private void deliverShm() {
+        byte[] buf = new byte[Packet.MAX_PAYLOAD_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(buf);
+        PacketHeader header = new PacketHeader();
+        while (true) {
+            buffer.clear();
+            if (sharedMemory.receive(buffer)) {
+                buffer.flip();
+                if (!header.read(buffer, getMyId()) || !filterHeader(header)) {
+                    continue;
+                }
+                Packet packet = Packet.deserialize(buf, buffer.limit(), getMyId());
+                if (packet != null) {
+                    decoder.apply(packet);
+                    handleListener(packet);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create the compressor configured by Link.COMPRESSION, and register its
+     * statistics in the link metrics.
+     *
+     * @return The compressor, or null if compression is off.
+     */
+    private static Compressor createCompressor() {
+        if (!"adaptive".equals(Link.COMPRESSION) && !"always".equals(Link.COMPRESSION)) {
+            return null;
+        }
+        Compressor compressor = new Compressor("adaptive".equals(Link.COMPRESSION), Link.COMPRESSION_BANDWIDTH);
+        LinkMetrics.register("fl.compression.enabled", () -> compressor.isEnabled() ? 1 : 0);
+        LinkMetrics.register("fl.compression.packets", compressor::getCompressed);
+        LinkMetrics.register("fl.compression.bytesIn", compressor::getBytesIn);
+        LinkMetrics.register("fl.compression.bytesOut", compressor::getBytesOut);
+        LinkMetrics.register("fl.compression.probes", compressor::getProbes);
+        return compressor;
+    }
+
+    /**
+     * Transmit a datagram through shared memory if possible, and otherwise on the
+     * (first) socket, or on the multicast socket.
+     *
+     * @param datagram The datagram to transmit.
+     * @throws IOException If the datagram could not be transmitted.
+     */
+    private void transmit(OutgoingDatagram datagram) throws IOException {
+        sendBuffer.clear();
+        datagram.getPacket().writeTo(sendBuffer, compressor);
+        sendBuffer.flip();
+        if (sharedMemory != null && sharedMemory.transmit(datagram.getHostId(), sendBuffer)) {
+            return;
+        }
+        sendPacket.setData(sendPacket.getData(), 0, sendBuffer.limit());
+        if (datagram.getHostId() == MULTICAST_HOST_ID) {
+            sendPacket.setSocketAddress(multicastGroup);
+            multicastSocket.send(sendPacket);
+        } else {
+            sendPacket.setSocketAddress(datagram.getHost().getSocketAddress());
+            sockets[0].send(sendPacket);
+        }
+    }
+
+    /**
+     * Transmit a datagram through shared memory if possible, and otherwise on the
+     * channel connected to its destination (or to the multicast group), gathering
+     * it into a direct buffer first.
+     *
+     * @param datagram The datagram to transmit.
+     * @throws IOException If the datagram could not be transmitted.
+     */
+    private void transmitNio(OutgoingDatagram datagram) throws IOException {
+        sendBuffer.clear();
+        datagram.getPacket().writeTo(sendBuffer, compressor);
+        sendBuffer.flip();
+        int hostId = datagram.getHostId();
+        if (sharedMemory != null && sharedMemory.transmit(hostId, sendBuffer)) {
+            return;
+        }
+        (hostId == MULTICAST_HOST_ID ? multicastSendChannel : sendChannels[hostId]).write(sendBuffer);
+    }
 }
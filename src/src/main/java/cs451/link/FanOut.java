@@ -0,0 +1,129 @@
+package cs451.link;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cs451.message.Frame;
+import cs451.message.Message;
+
+/**
+ * Groups the messages sent to several hosts at once into shared frames: each
+ * message is encoded once, in the open frame of its set of destinations. Once
+ * a frame is full, or has been open for long enough, it is sealed and handed to
+ * a sink, generally queuing it for each of the destinations, which then only
+ * differ by their packet header.
+ */
+class FanOut {
+
+    /**
+     * Receives the sealed frames.
+     */
+    @FunctionalInterface
+    interface Sink {
+
+        /**
+         * Take a sealed frame, holding one reference per destination.
+         *
+         * @param frame   The sealed frame.
+         * @param hostIds The IDs of the destinations of the frame.
+         */
+        void accept(Frame frame, List<Integer> hostIds);
+    }
+
+    /**
+     * The maximum time a frame stays open, waiting for more messages, once it
+     * contains a first message.
+     */
+    static final long LINGER_MS = 1;
+
+    /**
+     * The open frames, by set of destinations.
+     */
+    private final Map<List<Integer>, OpenFrame> openFrames = new HashMap<>();
+
+    /**
+     * The sink receiving the sealed frames.
+     */
+    private final Sink sink;
+
+    /**
+     * Create an empty fan-out.
+     *
+     * @param sink The sink receiving the sealed frames.
+     */
+    public FanOut(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Add a message to the open frame of the given set of destinations.
+     *
+     * @param message The message to send.
+     * @param hostIds The IDs of the destinations (not containing the local host).
+     */
+    public synchronized void add(Message message, List<Integer> hostIds) {
+        OpenFrame openFrame = openFrames.get(hostIds);
+        if (openFrame == null) {
+            openFrame = new OpenFrame(List.copyOf(hostIds));
+            openFrames.put(openFrame.hostIds, openFrame);
+        }
+        if (!openFrame.frame.canFit(message)) {
+            openFrame.seal();
+        }
+        if (openFrame.frame.isEmpty()) {
+            openFrame.openedAt = System.currentTimeMillis();
+        }
+        openFrame.frame.add(message);
+    }
+
+    /**
+     * Check whether all the frames are empty, i.e. no message waits to be flushed.
+     *
+     * @return Whether no frame contains a message.
+     */
+    public synchronized boolean isEmpty() {
+        for (OpenFrame openFrame : openFrames.values()) {
+            if (!openFrame.frame.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Seal and queue the frames that have been waiting for more messages for too
+     * long.
+     */
+    public synchronized void flush() {
+        long now = System.currentTimeMillis();
+        for (OpenFrame openFrame : openFrames.values()) {
+            if (!openFrame.frame.isEmpty() && now - openFrame.openedAt >= LINGER_MS) {
+                openFrame.seal();
+            }
+        }
+    }
+
+    /**
+     * The frame currently filled for a given set of destinations.
+     */
+    private class OpenFrame {
+        private final List<Integer> hostIds;
+        private Frame frame = Frame.open();
+        private long openedAt = 0;
+
+        private OpenFrame(List<Integer> hostIds) {
+            this.hostIds = hostIds;
+        }
+
+        /**
+         * Seal the frame, hand it to the sink (with one reference per destination),
+         * and open a new one.
+         */
+        private void seal() {
+            frame.seal(hostIds.size());
+            sink.accept(frame, hostIds);
+            frame = Frame.open();
+        }
+    }
+}
@@ -1,18 +1,20 @@
 package cs451.link;
 
 import java.net.InetAddress;
-import java.util.LinkedList;
-import java.util.List;
+import java.net.InetSocketAddress;
 import java.util.Map;
-import java.util.Queue;
+import java.util.NavigableMap;
 import java.util.TreeMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
+import cs451.message.Frame;
 import cs451.message.Message;
+import cs451.message.MessageView;
 import cs451.message.Packet;
+import cs451.message.PacketHeader;
 import cs451.vectorclock.MessageRange;
 import cs451.vectorclock.VectorClock;
 
@@ -22,10 +24,29 @@ import cs451.vectorclock.VectorClock;
 public class HostInfo {
 
     /**
-     * The "stubborn" queue, i.e. messages sent to this host that have not been
-     * acked yet.
+     * The "stubborn" packets, i.e. packets sent to this host that have not been
+     * acked yet, by packet number.
      */
-    private final BlockingQueue<WaitingPacket> stubbornQueue = new LinkedBlockingQueue<>();
+    private final NavigableMap<Integer, WaitingPacket> stubbornPackets = new TreeMap<>();
+
+    /**
+     * The number of messages of the "stubborn" packets (only used with the lock of
+     * stubbornPackets).
+     */
+    private int messagesInFlight = 0;
+
+    /**
+     * The last window advertised by this host, i.e. the number of messages it can
+     * take (unlimited until its first ack).
+     */
+    private volatile int advertisedWindow = Integer.MAX_VALUE;
+
+    /**
+     * The arrays in which the selective ranges of acked packets are copied (only
+     * used with the lock of stubbornPackets).
+     */
+    private final long[] ackedStarts = new long[1 << 5];
+    private final long[] ackedEnds = new long[1 << 5];
 
     /**
      * The queue of waiting messages, to be emptied once the stubborn queue is small
@@ -33,6 +54,12 @@ public class HostInfo {
      */
     private final Map<Integer, BlockingQueue<Message>> waitingQueue = new TreeMap<>();
 
+    /**
+     * The queue of waiting frames, i.e. messages already encoded in a frame shared
+     * with other hosts. Each frame becomes a packet of its own.
+     */
+    private final BlockingQueue<Frame> waitingFrames = new LinkedBlockingQueue<>();
+
     /**
      * The messages already delivered from this host, i.e. messages that had this
      * host as last hop. This is used by the PerfectLink layer.
@@ -40,19 +67,21 @@ public class HostInfo {
     private final Map<Integer, MessageRange> delivered = new TreeMap<>();
 
     /**
-     * The current timeout of this host.
+     * The fragmented messages being reassembled, coming from this host. This is
+     * used by the PerfectLink layer.
      */
-    private final AtomicLong currentTimeout = new AtomicLong(Link.TIMEOUT_MS);
+    private final Reassembly reassembly = new Reassembly();
 
     /**
-     * The number of RTTs saved for the timeout computation.
+     * The fragmented messages sent to this host, waiting for the acks of all their
+     * fragments. This is used by the PerfectLink layer.
      */
-    private static final int SAVED_RTTS = 5;
+    private final Echoes echoes = new Echoes();
 
     /**
-     * The list of the last SAVED_RTTS for the timeout computation.
+     * The estimation of the RTT and of the retransmission timeout of this host.
      */
-    private final Queue<Long> lastRTTs = new LinkedList<>();
+    private final RttEstimator rtt = new RttEstimator();
 
     /**
      * The address of this host.
@@ -65,9 +94,29 @@ public class HostInfo {
     private final int port;
 
     /**
-     * The amount of messages that can be sent to this host
+     * The socket address of this host, built once to avoid allocating it for each
+     * sent datagram.
      */
-    private final int windowSize;
+    private final InetSocketAddress socketAddress;
+
+    /**
+     * The congestion control of the packets sent to this host, giving the amount
+     * of packets that can wait for their ack.
+     */
+    private final CongestionControl congestion;
+
+    /**
+     * The share of the in-flight budget of this host, i.e. the number of packets
+     * that can wait for their ack (on top of the congestion window), set by the
+     * InFlightBudget.
+     */
+    private volatile int budgetShare = Link.WINDOW_SIZE / 2;
+
+    /**
+     * The number of packets acked since the budget was last redistributed (only
+     * used with the lock of stubbornPackets).
+     */
+    private int ackedCount = 0;
 
     /**
      * The total number of hosts in the topology.
@@ -99,8 +148,8 @@ public class HostInfo {
 
     /**
      * Create a new HostInfo instance. The local window size, i.e. the max. number
-     * of "stubborn" (not acked) messages for this host, depends on the number of
-     * hosts in the topology.
+     * of "stubborn" (not acked) messages for this host, is given by its congestion
+     * control.
      *
      * @param address  The address of the host.
      * @param port     The port number of the host.
@@ -109,16 +158,13 @@ public class HostInfo {
     public HostInfo(InetAddress address, int port, int numHosts) {
         this.address = address;
         this.port = port;
-        // We divide the window by 2 to take acks into account.
-        this.windowSize = Math.max(1, Link.WINDOW_SIZE / numHosts / 2);
+        this.socketAddress = new InetSocketAddress(address, port);
+        this.congestion = new CongestionControl(Link.WINDOW_SIZE / 2);
         this.numHosts = numHosts;
         for (int i = 1; i <= numHosts; ++i) {
             waitingQueue.put(i, new LinkedBlockingQueue<>());
             delivered.put(i, new MessageRange());
         }
-        for (int i = 0; i < SAVED_RTTS; i++) {
-            lastRTTs.add(Link.TIMEOUT_MS);
-        }
     }
 
     /**
@@ -139,6 +185,15 @@ public class HostInfo {
         return port;
     }
 
+    /**
+     * Get the socket address (address and port number) of the host.
+     *
+     * @return The socket address of the host.
+     */
+    public InetSocketAddress getSocketAddress() {
+        return socketAddress;
+    }
+
     /**
      * Check whether a given message was already delivered, coming from this host.
      *
@@ -146,7 +201,19 @@ public class HostInfo {
      * @return Whether the given message was already delivered.
      */
     public boolean isDelivered(Message m) {
-        return delivered.get(m.getOriginId()).contains(m.getMessageId());
+        return isDelivered(m.getOriginId(), m.getMessageId());
+    }
+
+    /**
+     * Check whether a given message was already delivered, coming from this host,
+     * without creating it.
+     *
+     * @param originId  The origin ID of the message.
+     * @param messageId The message ID of the message.
+     * @return Whether the given message was already delivered.
+     */
+    public boolean isDelivered(int originId, long messageId) {
+        return delivered.get(originId).contains(messageId);
     }
 
     /**
@@ -160,6 +227,17 @@ public class HostInfo {
                 : theirPacketNumberDelivered.contains(p.getPacketNumber());
     }
 
+    /**
+     * Check whether a packet was already delivered, given only its header.
+     *
+     * @param header The header of the packet to check.
+     * @return Whether the packet was already delivered.
+     */
+    public boolean isDelivered(PacketHeader header) {
+        return header.isAck() ? myPacketNumberDelivered.contains(header.getPacketNumber())
+                : theirPacketNumberDelivered.contains(header.getPacketNumber());
+    }
+
     /**
      * Check whether a given packet was already delivered, coming from this host.
      *
@@ -171,27 +249,143 @@ public class HostInfo {
     }
 
     /**
-     * Mark a given message as delivered, coming from this host.
+     * Create an acknowledgement of a packet received from this host, reporting all
+     * the packets delivered from it so far.
+     *
+     * @param p      The packet to acknowledge.
+     * @param myId   The ID of the local host.
+     * @param window The window advertised to this host, in messages.
+     * @return The acknowledgement.
+     */
+    public Packet acknowledge(Packet p, int myId, int window) {
+        return p.toAck(myId, theirPacketNumberDelivered, window);
+    }
+
+    /**
+     * Create an acknowledgement of a packet received from this host, given only its
+     * header (e.g. for a packet already delivered, dropped before being
+     * deserialized).
+     *
+     * @param header The header of the packet to acknowledge.
+     * @param myId   The ID of the local host.
+     * @param window The window advertised to this host, in messages.
+     * @return The acknowledgement.
+     */
+    public Packet acknowledge(PacketHeader header, int myId, int window) {
+        return Packet.createAck(header.getPacketNumber(), header.getTimestamp(), myId,
+                theirPacketNumberDelivered, window);
+    }
+
+    /**
+     * Apply the window advertised by an acknowledgement of this host.
+     *
+     * @param ack The acknowledgement.
+     */
+    public void applyAdvertisedWindow(Packet ack) {
+        advertisedWindow = ack.getAdvertisedWindow();
+    }
+
+    /**
+     * Get the last window advertised by this host.
+     *
+     * @return The number of messages this host can take.
+     */
+    public int getAdvertisedWindow() {
+        return advertisedWindow;
+    }
+
+    /**
+     * Mark a given message as delivered, coming from this host. Checking and
+     * marking is atomic, as packets of this host may be received by several
+     * threads (e.g. unicast and multicast).
      *
      * @param m The message to mark as delivered.
+     * @return Whether the message was not delivered yet.
      */
-    public void markDelivered(Message m) {
-        delivered.get(m.getOriginId()).add(m.getMessageId());
+    public boolean markDelivered(Message m) {
+        return markDelivered(m.getOriginId(), m.getMessageId());
     }
 
     /**
-     * Mark a given packet as delivered, coming from this host.
+     * Mark a given message as delivered, coming from this host, without creating
+     * it (used for the runs of messages).
+     *
+     * @param originId  The origin ID of the message.
+     * @param messageId The message ID of the message.
+     * @return Whether the message was not delivered yet.
+     */
+    public boolean markDelivered(int originId, long messageId) {
+        return delivered.get(originId).add(messageId);
+    }
+
+    /**
+     * Mark a given packet as delivered, coming from this host. Checking and
+     * marking is atomic, as packets of this host may be received by several
+     * threads (e.g. unicast and multicast). An acknowledgement is applied in one
+     * step, with its cumulative and selective ranges.
      *
      * @param p The packet to mark as delivered.
+     * @return Whether the packet was not delivered yet.
      */
-    public void markDelivered(Packet p) {
+    public boolean markDelivered(Packet p) {
         if (p.isAck()) {
-            myPacketNumberDelivered.addMember(p.getPacketNumber());
+            return p.acknowledgeIn(myPacketNumberDelivered);
         } else {
-            theirPacketNumberDelivered.addMember(p.getPacketNumber());
+            return theirPacketNumberDelivered.addMember(p.getPacketNumber());
         }
     }
 
+    /**
+     * Check whether a packet received from this host can be accepted, given the
+     * memory used to reassemble fragmented messages: the reassemblies the packet
+     * starts are reserved if it is accepted. A refused packet must be dropped
+     * before being acknowledged.
+     *
+     * @param p The received packet.
+     * @return Whether the packet is accepted.
+     */
+    public boolean admits(Packet p) {
+        return reassembly.admits(p, (originId, messageId) -> isDelivered(originId, messageId));
+    }
+
+    /**
+     * Add a fragment received from this host to its message. The fragments of a
+     * message already delivered are ignored.
+     *
+     * @param fragment The received fragment.
+     * @return The reassembled message, once its last fragment is added, or null.
+     */
+    public Message reassemble(MessageView fragment) {
+        if (isDelivered(fragment.getOriginId(), fragment.getMessageId())) {
+            reassembly.discard(fragment.getOriginId(), fragment.getMessageId());
+            return null;
+        }
+        return reassembly.add(fragment);
+    }
+
+    /**
+     * Expect the echoes of the fragments of a message about to be sent to this
+     * host.
+     *
+     * @param message     The complete message.
+     * @param nbFragments The number of fragments of the message.
+     */
+    public void expectEchoes(Message message, int nbFragments) {
+        echoes.expect(message, nbFragments);
+    }
+
+    /**
+     * Count the echo of a fragment acked by this host.
+     *
+     * @param fragment The echoed fragment.
+     * @return The complete message, as echoed by this host, once all its fragments
+     *         were acked, or null.
+     */
+    public Message echo(MessageView fragment) {
+        Message message = echoes.echo(fragment);
+        return message == null ? null : message.withLastHop(fragment.getLastHop());
+    }
+
     /**
      * Get the map of delivered messages, associating an origin to the message IDs
      * already delivered.
@@ -203,14 +397,108 @@ public class HostInfo {
     }
 
     /**
-     * Get the next "stubborn" (not acked) messages.
+     * Remove the "stubborn" packets acked by this host, i.e. the packets up to its
+     * cumulative acknowledgement and in its first selective ranges, and apply the
+     * given function on each of them. The packets acked beyond these ranges are
+     * removed once their retransmission is due. The congestion window grows with
+     * the removed packets, and is decreased if the first packet still waiting is
+     * deemed lost, i.e. if enough packets after it were acked: the lost packet is
+     * then handed over to be retransmitted straight away (once), rather than after
+     * its timeout.
+     *
+     * @param onAcked The function called on each removed packet.
+     * @param onLost  The function called on a packet deemed lost.
+     * @return The number of removed packets.
+     */
+    public int removeAckedPackets(Consumer<WaitingPacket> onAcked, Consumer<WaitingPacket> onLost) {
+        int count = 0;
+        synchronized (stubbornPackets) {
+            Map<Integer, WaitingPacket> acked = stubbornPackets.headMap((int) myPacketNumberDelivered.getStateOfVc(),
+                    true);
+            count += removeAll(acked, onAcked);
+            int nbRanges = myPacketNumberDelivered.getWaitingRanges(ackedStarts, ackedEnds);
+            for (int i = 0; i < nbRanges; ++i) {
+                count += removeAll(stubbornPackets.subMap((int) ackedStarts[i], true, (int) ackedEnds[i], true),
+                        onAcked);
+            }
+            long highestAcked = nbRanges > 0 ? ackedEnds[nbRanges - 1] : myPacketNumberDelivered.getStateOfVc();
+            if (!stubbornPackets.isEmpty()
+                    && highestAcked - stubbornPackets.firstKey() > CongestionControl.DUPLICATE_THRESHOLD) {
+                WaitingPacket lost = stubbornPackets.firstEntry().getValue();
+                congestion.onLoss(lost.getPacket().getPacketNumber(), packetNumbersSent.get());
+                if (lost.markFastRetransmit()) {
+                    onLost.accept(lost);
+                }
+            }
+            ackedCount += count;
+        }
+        congestion.onAcked(count);
+        return count;
+    }
+
+    /**
+     * Remove all the packets of a view of the stubborn packets, and apply the
+     * given function on each of them.
+     *
+     * @param packets The view of the stubborn packets.
+     * @param onAcked The function called on each removed packet.
+     * @return The number of removed packets.
+     */
+    private int removeAll(Map<Integer, WaitingPacket> packets, Consumer<WaitingPacket> onAcked) {
+        int count = packets.size();
+        if (count > 0) {
+            for (WaitingPacket wp : packets.values()) {
+                messagesInFlight -= wp.getPacket().getNbMessages();
+                onAcked.accept(wp);
+            }
+            packets.clear();
+        }
+        return count;
+    }
+
+    /**
+     * Remove a given packet from the "stubborn" packets, if it is still there.
      *
-     * @return The list of next stubborn messages.
+     * @param wp The waiting packet to remove.
+     * @return Whether the packet was removed (and not removed by someone else).
      */
-    public List<WaitingPacket> getNextStubbornPackets() {
-        List<WaitingPacket> stubbornPackets = new LinkedList<>();
-        stubbornQueue.drainTo(stubbornPackets);
-        return stubbornPackets;
+    public boolean removePacketToConfirm(WaitingPacket wp) {
+        synchronized (stubbornPackets) {
+            if (!stubbornPackets.remove(wp.getPacket().getPacketNumber(), wp)) {
+                return false;
+            }
+            messagesInFlight -= wp.getPacket().getNbMessages();
+            return true;
+        }
+    }
+
+    /**
+     * Take a packet whose timer expired as lost, if it is still waiting to be
+     * acked: the timeout is backed off, the congestion window decreased (unless
+     * the packet is fast retransmitted, i.e. was already deemed lost by the acks
+     * of the following packets), and the packet marked as retransmitted and
+     * scheduled again. This is atomic with the
+     * removal of the acked packets, so that a packet acked meanwhile is neither
+     * taken as lost nor scheduled again once handed over as acked.
+     *
+     * @param wp         The waiting packet whose timer expired.
+     * @param reschedule The function scheduling the next timer of the packet
+     *                   (called with the backed off timeout).
+     * @return Whether the packet is still waiting to be acked, and must be sent
+     *         again.
+     */
+    public boolean retransmitting(WaitingPacket wp, Consumer<WaitingPacket> reschedule) {
+        synchronized (stubbornPackets) {
+            if (stubbornPackets.get(wp.getPacket().getPacketNumber()) != wp) {
+                return false;
+            }
+            if (!wp.takeFastRetransmit()) {
+                timedOut(wp);
+            }
+            wp.markRetransmitted(rtt.getBackOffs());
+            reschedule.accept(wp);
+            return true;
+        }
     }
 
     /**
@@ -223,13 +511,16 @@ public class HostInfo {
     }
 
     /**
-     * Add a given WaitingPacket to the "stubborn" (not acked) queue.
+     * Add a given WaitingPacket to the "stubborn" (not acked) packets.
      *
-     * @param wp The waiting packet to add to the stubborn queue.
-     * @throws InterruptedException
+     * @param wp The waiting packet to add to the stubborn packets.
      */
-    public void addPacketToConfirm(WaitingPacket wp) throws InterruptedException {
-        stubbornQueue.put(wp);
+    public void addPacketToConfirm(WaitingPacket wp) {
+        synchronized (stubbornPackets) {
+            stubbornPackets.put(wp.getPacket().getPacketNumber(), wp);
+            messagesInFlight += wp.getPacket().getNbMessages();
+            wp.markSent(rtt.getBackOffs());
+        }
     }
 
     /**
@@ -246,6 +537,49 @@ public class HostInfo {
         }
     }
 
+    /**
+     * Store a new frame to the waiting list, i.e. a frame not yet sent, waiting
+     * that the window is big enough. The reference to the frame held by this host
+     * is transferred to the waiting list.
+     *
+     * @param frame The frame to add to the waiting list.
+     */
+    public void addFrameInWaitingList(Frame frame) {
+        waitingFrames.add(frame);
+    }
+
+    /**
+     * Retrieve the next waiting frame, if any.
+     *
+     * @return The next frame to "stubborn" send, or null if there is none.
+     */
+    public Frame getNextWaitingFrame() {
+        return waitingFrames.poll();
+    }
+
+    /**
+     * Check whether there is at least one waiting message (not counting frames).
+     *
+     * @return Whether there is at least one waiting message.
+     */
+    public boolean hasWaitingMessages() {
+        for (BlockingQueue<Message> queue : waitingQueue.values()) {
+            if (!queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether there is at least one waiting frame.
+     *
+     * @return Whether there is at least one waiting frame.
+     */
+    public boolean hasWaitingFrames() {
+        return !waitingFrames.isEmpty();
+    }
+
     /**
      * "Send" a range of messages, i.e. add the range to the WaitingList.
      *
@@ -254,18 +588,58 @@ public class HostInfo {
      * @param b        The last value of the message IDs (generally the number of
      *                 messages to broadcast).
      */
-    public void sendRange(int originId, int a, int b) {
+    public void sendRange(int originId, long a, long b) {
         throw new RuntimeException("Obsolete FIFO implementation.");
     }
 
     /**
-     * Check whether we can send a new message, i.e. if the size of the "stubborn"
-     * queues (messages not yet acked) is less than the window size.
+     * Check whether we can send a new message, i.e. if the number of "stubborn"
+     * packets (not yet acked) is less than the congestion window and the share of
+     * the in-flight budget of this host, and the number of
+     * their messages is less than the window advertised by this host. If this host
+     * advertised no room, a single packet may still be in flight, so that its ack
+     * tells when there is room again.
      *
      * @return Whether we can send a new message.
      */
     public boolean canSendWaitingMessages() {
-        return stubbornQueue.size() < windowSize;
+        synchronized (stubbornPackets) {
+            return stubbornPackets.size() < Math.min(congestion.getWindow(), budgetShare)
+                    && (stubbornPackets.isEmpty() || messagesInFlight < advertisedWindow);
+        }
+    }
+
+    /**
+     * Get the number of messages that may still be sent to this host, i.e. the
+     * window it advertised minus the messages in flight. If no packet is in
+     * flight, a single message may always be sent, so that its ack tells when
+     * there is room again.
+     *
+     * @return The maximum number of messages of the next packet.
+     */
+    public int getAdvertisedRoom() {
+        synchronized (stubbornPackets) {
+            int room = advertisedWindow - messagesInFlight;
+            return stubbornPackets.isEmpty() ? Math.max(1, room) : Math.max(0, room);
+        }
+    }
+
+    /**
+     * Get the next waiting message without removing it, i.e. the message the next
+     * call to getNextWaitingMessage retrieves (the waiting queues only have a
+     * single consumer, the sending thread).
+     *
+     * @return The next message to "stubborn" send, or null if there is none.
+     */
+    public Message peekNextWaitingMessage() {
+        for (int i = 1; i <= numHosts; ++i) {
+            Message message = waitingQueue.get(nextOriginToSend).peek();
+            if (message != null) {
+                return message;
+            }
+            nextOriginToSend = nextOriginToSend == numHosts ? 1 : nextOriginToSend + 1;
+        }
+        return null;
     }
 
     /**
@@ -293,50 +667,111 @@ public class HostInfo {
     }
 
     /**
-     * Get the current timeout of the host, in milliseconds.
+     * Get the current timeout of the host, rounded up to the millisecond (the
+     * granularity of the retransmission timers).
      *
      * @return The current timeout, in milliseconds.
      */
     public long getTimeout() {
-        return currentTimeout.get();
+        return (rtt.getRtoUs() + 999) / 1000;
     }
 
     /**
-     * Reset the value of this host's timeout by adding the reported RTT to the list
-     * of most recent RTTs for this host.
-     * 
-     * @param packet The packet reporting the timeout.
+     * Get the current timeout of the host.
+     *
+     * @return The current timeout, in microseconds.
+     */
+    public long getTimeoutUs() {
+        return rtt.getRtoUs();
+    }
+
+    /**
+     * Get the smoothed RTT of the host.
+     *
+     * @return The smoothed RTT, in microseconds.
+     */
+    public long getSmoothedRttUs() {
+        return rtt.getSrttUs();
+    }
+
+    /**
+     * Update the timeout of this host with the RTT measured by an ack, i.e. the
+     * age of the timestamp it echoes. Following Karn's rule, the RTT is only
+     * measured if the acked packet is still waiting for its ack and was never
+     * retransmitted. Must be called before the acked packets are removed.
+     *
+     * @param packet The ack reporting the RTT.
      */
     public void resetTimeout(Packet packet) {
-        setTimeout(packet.getAgeInMs());
+        WaitingPacket wp;
+        synchronized (stubbornPackets) {
+            wp = stubbornPackets.get(packet.getPacketNumber());
+        }
+        if (wp != null && !wp.isRetransmitted()) {
+            rtt.sample(packet.getAgeInUs());
+        }
     }
 
     /**
-     * Add double the actual timeout to the list of most recent RTTs for this host.
-     * This method will therefore not actually double the actual RTT.
+     * Double the timeout of this host after a packet timed out, and decrease its
+     * congestion window, once per loss event: the packets sent before the last
+     * back-off (or decrease) do not count again.
+     *
+     * @param wp The packet that timed out.
      */
-    public void exponentialBackOff() {
-        long timeout = getTimeout();
-        setTimeout(Math.min(timeout * 2, Link.MAX_TIMEOUT));
+    private void timedOut(WaitingPacket wp) {
+        rtt.backOff(wp.getSentAt());
+        congestion.onLoss(wp.getPacket().getPacketNumber(), packetNumbersSent.get());
     }
 
     /**
-     * Adds the timeout to the list, and computes a new timeout value.
+     * Get the congestion window of this host.
      *
-     * @param messageTimeout The reported timeout, in ms.
+     * @return The number of packets that may wait for their ack.
      */
-    private void setTimeout(long messageTimeout) {
-        synchronized (lastRTTs) {
-            lastRTTs.poll();
-            lastRTTs.add(messageTimeout);
-            long newTimeout = 0;
-            for (Long t : lastRTTs) {
-                newTimeout += t;
-            }
-            newTimeout /= lastRTTs.size();
-            // Add 50ms for processing purposes, and to avoid any DDOS.
-            newTimeout += 50;
-            currentTimeout.set(newTimeout);
+    public int getCongestionWindow() {
+        return congestion.getWindow();
+    }
+
+    /**
+     * Set the share of the in-flight budget of this host.
+     *
+     * @param share The number of packets that may wait for their ack.
+     */
+    void setBudgetShare(int share) {
+        budgetShare = share;
+    }
+
+    /**
+     * Get the share of the in-flight budget of this host.
+     *
+     * @return The number of packets that may wait for their ack.
+     */
+    public int getBudgetShare() {
+        return budgetShare;
+    }
+
+    /**
+     * Get the number of packets acked since the last call, to measure the ack rate
+     * of this host.
+     *
+     * @return The number of packets acked since the last call.
+     */
+    int takeAckedCount() {
+        synchronized (stubbornPackets) {
+            int count = ackedCount;
+            ackedCount = 0;
+            return count;
         }
     }
+
+    /**
+     * Get the number of loss events of this host, i.e. of decreases of its
+     * congestion window.
+     *
+     * @return The number of loss events.
+     */
+    public long getLossEvents() {
+        return congestion.getLossEvents();
+    }
 }
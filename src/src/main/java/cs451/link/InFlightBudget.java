@@ -0,0 +1,142 @@
+package cs451.link;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The budget of packets in flight (sent and not yet acked), shared by all the
+ * distant hosts. Each host is guaranteed a minimum share of the budget, and the
+ * rest of it is redistributed periodically among the hosts that have messages
+ * waiting, in proportion to the rate at which they ack packets: idle or crashed
+ * hosts keep their minimum share only, so that the busy ones get the capacity
+ * they leave, while the total stays bounded. As each host needs at least the
+ * minimum congestion window to make progress, the total is raised to
+ * CongestionControl.MIN_WINDOW packets per host if that exceeds it: the bound
+ * is max(total, MIN_WINDOW * hosts).
+ *
+ * Only used by the sending thread of the stubborn link.
+ */
+class InFlightBudget {
+
+    /**
+     * The interval between two redistributions of the budget.
+     */
+    static final long INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * The weight of a measure over one interval in the moving averages of the ack
+     * rates.
+     */
+    private static final double ALPHA = 1.0 / 8;
+
+    /**
+     * The fraction of the equal share of each host it is guaranteed.
+     */
+    private static final int MINIMUM_DIVISOR = 4;
+
+    /**
+     * The distant hosts sharing the budget.
+     */
+    private final HostInfo[] hosts;
+
+    /**
+     * The moving average of the ack rate of each host, in packets per second.
+     */
+    private final double[] ackRates;
+
+    /**
+     * The weight of each host in the last redistribution.
+     */
+    private final double[] weights;
+
+    /**
+     * The share of the budget guaranteed to each host, in packets.
+     */
+    private final int minimum;
+
+    /**
+     * The part of the budget redistributed among the hosts, in packets.
+     */
+    private final int pool;
+
+    /**
+     * The time of the last redistribution.
+     */
+    private long lastRebalance = System.nanoTime();
+
+    /**
+     * Create the budget of the given hosts, initially shared equally.
+     *
+     * @param total The number of packets that may be in flight, for all the hosts
+     *              (raised to the minimum congestion window of each host).
+     * @param hosts The distant hosts.
+     */
+    public InFlightBudget(int total, Collection<HostInfo> hosts) {
+        this.hosts = hosts.toArray(new HostInfo[0]);
+        this.ackRates = new double[this.hosts.length];
+        this.weights = new double[this.hosts.length];
+        int peers = Math.max(1, this.hosts.length);
+        int bound = Math.max(total, CongestionControl.MIN_WINDOW * peers);
+        this.minimum = Math.max(CongestionControl.MIN_WINDOW, bound / peers / MINIMUM_DIVISOR);
+        this.pool = bound - minimum * peers;
+        for (HostInfo host : this.hosts) {
+            host.setBudgetShare(minimum + pool / peers);
+        }
+    }
+
+    /**
+     * Redistribute the budget, if the interval elapsed since the last time: each
+     * host gets its minimum share, plus a part of the pool proportional to its ack
+     * rate if it has messages waiting. If no host has messages waiting, the pool
+     * is shared equally.
+     *
+     * @return Whether the budget was redistributed.
+     */
+    public boolean rebalance() {
+        return rebalance(System.nanoTime());
+    }
+
+    /**
+     * Get the time until the next redistribution of the budget is due, so that the
+     * sending thread does not sleep past it.
+     *
+     * @return The time until the next redistribution, in nanoseconds (0 if it is
+     *         already due).
+     */
+    public long nanosToNextRebalance() {
+        return Math.max(0, lastRebalance + INTERVAL_NS - System.nanoTime());
+    }
+
+    /**
+     * Redistribute the budget at the given time (see rebalance). If more than one
+     * interval elapsed, the ack rates measured over them weigh as much as one
+     * measure per interval in their moving averages, so that a late
+     * redistribution does not skew them.
+     *
+     * @param now The current time, in nanoseconds.
+     * @return Whether the budget was redistributed.
+     */
+    boolean rebalance(long now) {
+        long elapsed = now - lastRebalance;
+        if (elapsed < INTERVAL_NS) {
+            return false;
+        }
+        lastRebalance = now;
+        double alpha = 1 - Math.pow(1 - ALPHA, (double) elapsed / INTERVAL_NS);
+
+        double totalWeight = 0;
+        for (int i = 0; i < hosts.length; ++i) {
+            double rate = hosts[i].takeAckedCount() * 1e9 / elapsed;
+            ackRates[i] += alpha * (rate - ackRates[i]);
+            // A host with messages waiting always weighs a little, so that it gets a part
+            // of the pool back once it acks again.
+            weights[i] = hosts[i].hasWaitingMessages() || hosts[i].hasWaitingFrames() ? ackRates[i] + 1 : 0;
+            totalWeight += weights[i];
+        }
+        for (int i = 0; i < hosts.length; ++i) {
+            int extra = totalWeight > 0 ? (int) (pool * weights[i] / totalWeight) : pool / hosts.length;
+            hosts[i].setBudgetShare(minimum + extra);
+        }
+        return true;
+    }
+}
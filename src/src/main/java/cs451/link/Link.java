@@ -1,6 +1,7 @@
 package cs451.link;
 
 import java.util.List;
+import java.util.function.IntSupplier;
 
 import cs451.listener.BListener;
 import cs451.message.Message;
@@ -13,20 +14,97 @@ import cs451.parser.Host;
 public interface Link {
 
     /**
-     * The number of packages to be sent at a maximum, for all hosts. The final
-     * window size will depend on the number of hosts.
+     * The number of packages to be sent at a maximum. Half of it (to take acks
+     * into account) is the in-flight budget shared by all the hosts, up to which
+     * the congestion window of each host grows.
      */
     public static final int WINDOW_SIZE = 1 << 10;
 
     /**
-     * The base timeout value for lost messages, in milliseconds.
+     * The initial timeout value for lost messages, before any RTT is measured, in
+     * milliseconds (as in RFC 6298).
      */
-    public static final long TIMEOUT_MS = 2000;
+    public static final long TIMEOUT_MS = 1000;
 
     /**
      * The maximum timeout value for lost messages, in milliseconds.
      */
-    public static final long MAX_TIMEOUT = TIMEOUT_MS << 3;
+    public static final long MAX_TIMEOUT = TIMEOUT_MS << 4;
+
+    /**
+     * The minimum timeout value for lost messages, in microseconds, which is also
+     * the minimum margin above the smoothed RTT (-Dcs451.minTimeoutUs=us, the 1 ms
+     * granularity of the retransmission timers by default).
+     */
+    public static final long MIN_TIMEOUT_US = Math.max(1, Long.getLong("cs451.minTimeoutUs", 1000));
+
+    /**
+     * Whether the fair-loss link uses a non-blocking DatagramChannel with pooled
+     * direct buffers (default), or a plain blocking DatagramSocket. Can be switched
+     * off with -Dcs451.nio=false.
+     */
+    public static final boolean USE_NIO = !"false".equals(System.getProperty("cs451.nio"));
+
+    /**
+     * The number of receiving sockets opened on the same port with SO_REUSEPORT,
+     * each with its own receiving thread (-Dcs451.shards=N, 1 by default). Ignored
+     * if the local host advertises a port range in the hosts file, in which case
+     * one socket is opened per port of the range.
+     */
+    public static final int RECEIVE_SHARDS = Math.max(1, Integer.getInteger("cs451.shards", 1));
+
+    /**
+     * The multicast group, as address:port, to which broadcast frames are sent once
+     * for all their destinations (-Dcs451.multicast=239.255.45.1:11451), or null
+     * to send one unicast datagram per destination (default). Retransmissions and
+     * acks always remain unicast.
+     */
+    public static final String MULTICAST_GROUP = System.getProperty("cs451.multicast");
+
+    /**
+     * Whether datagrams between processes of the same machine go through
+     * shared-memory rings under /dev/shm instead of UDP (-Dcs451.shm=true, off by
+     * default). Distant hosts are still reached by UDP.
+     */
+    public static final boolean USE_SHM = "true".equals(System.getProperty("cs451.shm"));
+
+    /**
+     * The name of the transport provider used under the stubborn link
+     * (-Dcs451.transport=name, TransportProvider.DEFAULT by default).
+     */
+    public static final String TRANSPORT = System.getProperty("cs451.transport", TransportProvider.DEFAULT);
+
+    /**
+     * The compression of the packet bodies by the fair-loss link
+     * (-Dcs451.compression=off|adaptive|always, off by default). In adaptive mode,
+     * bodies are only compressed while it pays off given COMPRESSION_BANDWIDTH;
+     * always compresses every body it shrinks.
+     */
+    public static final String COMPRESSION = System.getProperty("cs451.compression", "off");
+
+    /**
+     * The bandwidth of the network, in bytes per second, against which adaptive
+     * compression weighs its CPU cost (-Dcs451.compression.bandwidth=bytes, 1
+     * Gbit/s by default).
+     */
+    public static final long COMPRESSION_BANDWIDTH = Math.max(1,
+            Long.getLong("cs451.compression.bandwidth", 125_000_000L));
+
+    /**
+     * The maximum number of payload bytes carried by a single message on the wire
+     * (-Dcs451.fragmentSize=bytes, 8 KiB by default, at most 32 KiB): a larger
+     * payload is split into fragments, reassembled by the receiving perfect link.
+     */
+    public static final int FRAGMENT_SIZE = Math.max(1,
+            Math.min(Integer.getInteger("cs451.fragmentSize", 1 << 13), 1 << 15));
+
+    /**
+     * The number of bytes the perfect link may use to reassemble fragmented
+     * messages, for all hosts (-Dcs451.reassemblyBytes=bytes, 64 MiB by default).
+     * It is also the maximum size of a payload.
+     */
+    public static final long REASSEMBLY_BUDGET = Math.max(FRAGMENT_SIZE,
+            Long.getLong("cs451.reassemblyBytes", 1L << 26));
 
     /**
      * Send a message through a link.
@@ -36,6 +114,15 @@ public interface Link {
      */
     void send(Message message, int hostId);
 
+    /**
+     * Send a message to several hosts at once. The message is encoded only once,
+     * in a frame shared by all the destinations.
+     *
+     * @param message The message to be sent.
+     * @param hostIds The IDs of the recipients (not containing the local host).
+     */
+    void broadcast(Message message, List<Integer> hostIds);
+
     /**
      * Create and schedule the sending of locally created messages.
      *
@@ -43,10 +130,22 @@ public interface Link {
      * @param originId  The origin ID of the message (should be the local host ID).
      * @param messageId The maximum message ID of the range (starts at 1).
      */
-    void sendRange(int hostId, int originId, int messageId);
+    void sendRange(int hostId, int originId, long messageId);
+
+    /**
+     * Set the function giving the free space of the buffer in which the delivered
+     * messages wait to be handled. The link advertises it to the distant hosts in
+     * its acks, so that they limit the messages they have in flight to it, instead
+     * of filling the buffer. By default, the buffer is deemed unbounded.
+     *
+     * @param freeSpace The free space of the buffer, in messages.
+     */
+    default void setDeliveryBuffer(IntSupplier freeSpace) {
+    }
 
     /**
-     * Create the default link for this project, i.e. PerfectLink.
+     * Create the default link for this project, i.e. PerfectLink, on top of the
+     * configured transport.
      *
      * @param port     The port number to be used for communication purposes.
      * @param hosts    The list of Hosts, as given by the parser.
@@ -56,6 +155,6 @@ public interface Link {
      * @return The newly created (Perfect)Link.
      */
     static Link getLink(int port, List<Host> hosts, BListener listener, int myId) {
-        return new PerfectLink(port, hosts, listener, myId);
+        return new PerfectLink(port, hosts, listener, myId, TransportProvider.byName(TRANSPORT));
     }
 }
@@ -0,0 +1,61 @@
+package cs451.link;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the gauges and counters exposed by the link layer. Each part of
+ * the link registers a named value, which is only read when a report is asked
+ * for (at the end of the program's lifetime).
+ */
+public class LinkMetrics {
+
+    /**
+     * Whether the report is printed (on stderr) when the process stops
+     * (-Dcs451.metrics=true, off by default).
+     */
+    public static final boolean ENABLED = "true".equals(System.getProperty("cs451.metrics"));
+
+    /**
+     * The registered values, sorted by name.
+     */
+    private static final Map<String, LongSupplier> metrics = new ConcurrentSkipListMap<>();
+
+    private LinkMetrics() {
+        // Everything is statically done in this class.
+    }
+
+    /**
+     * Register a named value. A value registered twice under the same name
+     * overrides the previous one.
+     *
+     * @param name  The name of the value.
+     * @param value The function reading the current value.
+     */
+    public static void register(String name, LongSupplier value) {
+        metrics.put(name, value);
+    }
+
+    /**
+     * Read the current value of a registered metric.
+     *
+     * @param name The name of the value.
+     * @return The current value, or 0 if no such value is registered.
+     */
+    public static long get(String name) {
+        LongSupplier value = metrics.get(name);
+        return value == null ? 0 : value.getAsLong();
+    }
+
+    /**
+     * Build a report of all the registered values, one per line.
+     *
+     * @return The report of all registered values.
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        metrics.forEach((name, value) -> sb.append(name).append(' ').append(value.getAsLong()).append('\n'));
+        return sb.toString();
+    }
+}
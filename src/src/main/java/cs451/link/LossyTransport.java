@@ -0,0 +1,152 @@
+package cs451.link;
+
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cs451.listener.HListener;
+import cs451.message.Packet;
+import cs451.parser.Host;
+
+/**
+ * Transport emulating a lossy network on top of another transport, in the
+ * process itself: each outgoing packet goes through the NetworkModel of its
+ * link (one for the data packets, one for the acks), which may drop it, duplicate it, or hold it in a delay queue for a
+ * while. As every process (acks included) applies the model to its outgoing
+ * packets, this replaces tc netem on the loopback interface, without any
+ * privilege.
+ *
+ * Multicast is disabled, so that each destination goes through its own model.
+ */
+class LossyTransport implements Transport {
+
+    /**
+     * The transport actually sending the packets.
+     */
+    private final Transport inner;
+
+    /**
+     * The model of the data packets towards each distant host (indexed by host
+     * ID).
+     */
+    private final NetworkModel[] dataModels;
+
+    /**
+     * The model of the acks towards each distant host (indexed by host ID).
+     */
+    private final NetworkModel[] ackModels;
+
+    /**
+     * The delayed packets, ordered by the time they are due.
+     */
+    private final DelayQueue<DelayedPacket> delayed = new DelayQueue<>();
+
+    // Emulation statistics.
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong duplicated = new AtomicLong();
+    private final AtomicLong delayedCount = new AtomicLong();
+
+    /**
+     * Create a lossy transport, and register its statistics in the link metrics.
+     *
+     * @param inner The transport actually sending the packets.
+     * @param hosts The complete list of hosts of the network.
+     * @param myId  The ID of the local host.
+     */
+    public LossyTransport(Transport inner, List<Host> hosts, int myId) {
+        this.inner = inner;
+        this.dataModels = new NetworkModel[hosts.size() + 1];
+        this.ackModels = new NetworkModel[hosts.size() + 1];
+        for (Host host : hosts) {
+            dataModels[host.getId()] = new NetworkModel(myId, host.getId(), false);
+            ackModels[host.getId()] = new NetworkModel(myId, host.getId(), true);
+        }
+
+        LinkMetrics.register("lossy.lost", lost::get);
+        LinkMetrics.register("lossy.duplicated", duplicated::get);
+        LinkMetrics.register("lossy.delayed", delayedCount::get);
+        LinkMetrics.register("lossy.queued", delayed::size);
+
+        // Create a thread whose sole job is to send the delayed packets once due.
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        executor.execute(this::sendDelayed);
+    }
+
+    @Override
+    public void send(Packet packet, int hostId) {
+        NetworkModel model = packet.isAck() ? ackModels[hostId] : dataModels[hostId];
+        synchronized (model) {
+            if (model.isLost()) {
+                lost.incrementAndGet();
+                return;
+            }
+            int copies = 1;
+            if (model.isDuplicated()) {
+                duplicated.incrementAndGet();
+                copies = 2;
+            }
+            for (int i = 0; i < copies; ++i) {
+                long delayMs = model.nextDelayMs();
+                if (delayMs == 0) {
+                    inner.send(packet, hostId);
+                } else {
+                    // The delay queue holds its own reference to the frame of the packet.
+                    packet.retain();
+                    delayedCount.incrementAndGet();
+                    delayed.add(new DelayedPacket(packet, hostId, System.nanoTime() + delayMs * 1_000_000));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setHeaderFilter(HListener filter) {
+        inner.setHeaderFilter(filter);
+    }
+
+    /**
+     * Send the delayed packets through the inner transport, once they are due.
+     */
+    private void sendDelayed() {
+        while (true) {
+            DelayedPacket dp;
+            try {
+                dp = delayed.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            inner.send(dp.packet, dp.hostId);
+            dp.packet.release();
+        }
+    }
+
+    /**
+     * A packet held in the delay queue, with its destination.
+     */
+    private static class DelayedPacket implements Delayed {
+        private final Packet packet;
+        private final int hostId;
+        private final long dueNs;
+
+        private DelayedPacket(Packet packet, int hostId, long dueNs) {
+            this.packet = packet;
+            this.hostId = hostId;
+            this.dueNs = dueNs;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNs - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueNs, ((DelayedPacket) other).dueNs);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package cs451.link;
+
+import java.util.List;
+
+import cs451.listener.PListener;
+import cs451.parser.Host;
+
+/**
+ * Provider of the lossy transport: the transport named by -Dcs451.lossy.inner
+ * (the default one if unset), behind an emulated lossy network (see
+ * NetworkModel).
+ */
+class LossyTransportProvider implements TransportProvider {
+
+    /**
+     * The name of the provider.
+     */
+    static final String NAME = "lossy";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Transport create(int port, List<Host> hosts, PListener decoder, PListener listener, int myId) {
+        String innerName = System.getProperty("cs451.lossy.inner", DEFAULT);
+        if (NAME.equals(innerName)) {
+            throw new IllegalArgumentException("The lossy transport cannot wrap itself.");
+        }
+        Transport inner = TransportProvider.byName(innerName).create(port, hosts, decoder, listener, myId);
+        return new LossyTransport(inner, hosts, myId);
+    }
+}
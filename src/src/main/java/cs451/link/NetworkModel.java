@@ -0,0 +1,129 @@
+package cs451.link;
+
+import java.util.Random;
+
+/**
+ * Seeded model of an emulated network link, from the local host to a distant
+ * host: each packet can be lost, duplicated, and delayed by a base delay plus a
+ * uniform jitter (which reorders packets), or sent right away, ahead of the
+ * delayed ones (reordering). Data packets and acks, sent by different threads,
+ * go through separate models (lanes) with their own random stream, so that the
+ * n-th decision of a lane only depends on the seed, whatever the interleaving of
+ * the threads. Which packets are sent still depends on the timing of the run,
+ * so the same seed does not replay the same run.
+ *
+ * The model is configured by system properties, which can be overridden for the
+ * link towards a given host by appending its ID (e.g. -Dcs451.lossy.loss=0.1
+ * -Dcs451.lossy.loss.3=0.5):
+ *
+ * - cs451.lossy.seed: the seed of the random decisions (451 by default),
+ *
+ * - cs451.lossy.loss: the probability that a packet is lost,
+ *
+ * - cs451.lossy.duplicate: the probability that a packet is sent twice,
+ *
+ * - cs451.lossy.delayMs and cs451.lossy.jitterMs: the base delay of a packet, and
+ * the maximum deviation from it,
+ *
+ * - cs451.lossy.reorder: the probability that a packet is sent without delay.
+ *
+ * The model is not thread-safe: callers synchronize on it.
+ */
+class NetworkModel {
+
+    /**
+     * The prefix of the system properties of the model.
+     */
+    private static final String PREFIX = "cs451.lossy.";
+
+    /**
+     * The source of the random decisions of the link.
+     */
+    private final Random random;
+
+    /**
+     * The probability that a packet is lost.
+     */
+    private final double loss;
+
+    /**
+     * The probability that a packet is sent twice.
+     */
+    private final double duplicate;
+
+    /**
+     * The probability that a packet is sent without delay.
+     */
+    private final double reorder;
+
+    /**
+     * The base delay of a packet, in milliseconds.
+     */
+    private final long delayMs;
+
+    /**
+     * The maximum deviation from the base delay, in milliseconds.
+     */
+    private final long jitterMs;
+
+    /**
+     * Create the model of a lane of a link, as configured by the system
+     * properties.
+     *
+     * @param from The ID of the local host.
+     * @param to   The ID of the distant host.
+     * @param acks Whether the lane carries the acks, or the data packets.
+     */
+    public NetworkModel(int from, int to, boolean acks) {
+        long seed = Long.parseLong(property("seed", to, "451"));
+        this.random = new Random(((seed * 31 + from) * 31 + to) * 2 + (acks ? 1 : 0));
+        this.loss = Double.parseDouble(property("loss", to, "0"));
+        this.duplicate = Double.parseDouble(property("duplicate", to, "0"));
+        this.reorder = Double.parseDouble(property("reorder", to, "0"));
+        this.delayMs = Long.parseLong(property("delayMs", to, "0"));
+        this.jitterMs = Long.parseLong(property("jitterMs", to, "0"));
+    }
+
+    /**
+     * Get a property of the model, overridden for the given link if needed.
+     *
+     * @param name         The name of the property.
+     * @param to           The ID of the distant host.
+     * @param defaultValue The value if the property is not set.
+     * @return The value of the property.
+     */
+    private static String property(String name, int to, String defaultValue) {
+        return System.getProperty(PREFIX + name + "." + to, System.getProperty(PREFIX + name, defaultValue));
+    }
+
+    /**
+     * Decide whether the next packet is lost.
+     *
+     * @return Whether the packet is lost.
+     */
+    public boolean isLost() {
+        return loss > 0 && random.nextDouble() < loss;
+    }
+
+    /**
+     * Decide whether the next packet is sent twice.
+     *
+     * @return Whether the packet is duplicated.
+     */
+    public boolean isDuplicated() {
+        return duplicate > 0 && random.nextDouble() < duplicate;
+    }
+
+    /**
+     * Draw the delay of the next copy of a packet.
+     *
+     * @return The delay, in milliseconds (0 to send the packet right away).
+     */
+    public long nextDelayMs() {
+        if (reorder > 0 && random.nextDouble() < reorder) {
+            return 0;
+        }
+        long jitter = jitterMs > 0 ? (long) (random.nextDouble() * (2 * jitterMs + 1)) - jitterMs : 0;
+        return Math.max(0, delayMs + jitter);
+    }
+}
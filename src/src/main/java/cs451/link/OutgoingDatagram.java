@@ -0,0 +1,88 @@
+package cs451.link;
+
+import cs451.message.Packet;
+
+/**
+ * A packet waiting in the sending queue of the fair-loss link, together with
+ * its destination.
+ */
+class OutgoingDatagram {
+
+    /**
+     * The packet to send.
+     */
+    private final Packet packet;
+
+    /**
+     * The ID of the distant host, i.e. the destination.
+     */
+    private final int hostId;
+
+    /**
+     * The information about the distant host.
+     */
+    private final HostInfo host;
+
+    /**
+     * The time at which the datagram was created, i.e. queued, in nanoseconds.
+     */
+    private final long queuedAtNs = System.nanoTime();
+
+    /**
+     * Create a datagram ready to be sent.
+     *
+     * @param packet The packet to send.
+     * @param hostId The ID of the distant host.
+     * @param host   The information about the distant host.
+     */
+    public OutgoingDatagram(Packet packet, int hostId, HostInfo host) {
+        this.packet = packet;
+        this.hostId = hostId;
+        this.host = host;
+    }
+
+    /**
+     * Get the packet to send.
+     *
+     * @return The packet to send.
+     */
+    public Packet getPacket() {
+        return packet;
+    }
+
+    /**
+     * Get the ID of the destination.
+     *
+     * @return The ID of the distant host.
+     */
+    public int getHostId() {
+        return hostId;
+    }
+
+    /**
+     * Get the information about the destination.
+     *
+     * @return The information about the distant host.
+     */
+    public HostInfo getHost() {
+        return host;
+    }
+
+    /**
+     * Check whether the packet is an acknowledgement.
+     *
+     * @return Whether the datagram is an acknowledgement.
+     */
+    public boolean isAck() {
+        return packet.isAck();
+    }
+
+    /**
+     * Get the time at which the datagram was queued.
+     *
+     * @return The time at which the datagram was queued, in nanoseconds.
+     */
+    public long getQueuedAtNs() {
+        return queuedAtNs;
+    }
+}
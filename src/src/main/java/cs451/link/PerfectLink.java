@@ -1,6 +1,7 @@
 package cs451.link;
 
 import java.util.List;
+import java.util.function.IntSupplier;
 
 import cs451.listener.BListener;
 import cs451.message.Message;
@@ -25,10 +26,11 @@ class PerfectLink extends AbstractLink {
      * @param hosts    The complete list of hosts of the network.
      * @param listener The listener to call once a message is delivered.
      * @param myId     The ID of the local host.
+     * @param provider The provider of the underlying transport.
      */
-    public PerfectLink(int port, List<Host> hosts, BListener listener, int myId) {
+    public PerfectLink(int port, List<Host> hosts, BListener listener, int myId, TransportProvider provider) {
         super(listener, myId, hosts);
-        this.sLink = new StubbornLink(port, hosts, this::deliver, myId);
+        this.sLink = new StubbornLink(port, hosts, this::deliver, myId, provider);
     }
 
     @Override
@@ -37,25 +39,52 @@ class PerfectLink extends AbstractLink {
     }
 
     @Override
-    public void sendRange(int hostId, int originId, int messageId) {
+    public void broadcast(Message message, List<Integer> hostIds) {
+        sLink.broadcast(message, hostIds);
+    }
+
+    @Override
+    public void setDeliveryBuffer(IntSupplier freeSpace) {
+        sLink.setDeliveryBuffer(freeSpace);
+    }
+
+    @Override
+    public void sendRange(int hostId, int originId, long messageId) {
         sLink.sendRange(hostId, originId, messageId);
     }
 
     /**
      * Check if received messages were already delivered. If not, deliver them.
+     * Fragments are added to their message, which is delivered once reassembled.
+     * The fragments of an acked packet (echoed back) are only counted, as the
+     * local host still has their message.
      *
      * @param packet The packet that is delivered by the underlying link.
      */
     private void deliver(Packet packet) {
         HostInfo hostInfo = getHostInfo(packet.getLastHop());
-        // First, check if the packet was already delivered.
-        if (!hostInfo.isDelivered(packet)) {
-            hostInfo.markDelivered(packet);
-            packet.deliverMessages(message -> {
-                // Then, only deliver new messages.
-                if (!hostInfo.isDelivered(message)) {
-                    hostInfo.markDelivered(message);
-                    handleListener(message);
+        // First, check if the packet was already delivered. An acked packet is
+        // delivered once, when its ack is first seen by the stubborn link.
+        if (packet.isAck() || hostInfo.markDelivered(packet)) {
+            packet.deliverMessages(view -> {
+                if (view.isFragment()) {
+                    Message message = packet.isAck() ? hostInfo.echo(view) : hostInfo.reassemble(view);
+                    if (message != null && hostInfo.markDelivered(message)) {
+                        handleListener(message);
+                    }
+                    return;
+                }
+                // Then, only deliver new messages: a message is only created once it
+                // is known to be new.
+                if (hostInfo.markDelivered(view.getOriginId(), view.getMessageId())) {
+                    handleListener(view.toMessage());
+                }
+            }, (originId, firstId, count) -> {
+                // Messages of a run are only created if they are new.
+                for (long id = firstId; id < firstId + count; ++id) {
+                    if (hostInfo.markDelivered(originId, id)) {
+                        handleListener(Message.createMessage(originId, id, packet.getLastHop()));
+                    }
                 }
             });
         }
@@ -0,0 +1,186 @@
+package cs451.link;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+
+import cs451.message.Message;
+import cs451.message.MessageView;
+import cs451.message.Packet;
+import cs451.vectorclock.VectorClock;
+
+/**
+ * Reassembly of the fragmented messages received from one host (as last hop).
+ * Each fragment is copied straight from the datagram into the buffer of its
+ * message, allocated with the first fragment; the message is delivered once
+ * all the bytes of its payload were received, as a slice of this buffer.
+ *
+ * The memory used by the buffers of all the hosts is bounded by
+ * Link.REASSEMBLY_BUDGET: the buffer of a message is reserved and allocated
+ * when the first packet carrying one of its fragments is admitted, before it is
+ * acknowledged. A packet whose new reassemblies do not fit in the budget is
+ * dropped, and sent again later by its host. As a packet carries the fragments
+ * of at most one message (see MessageWriter), a packet continuing a reassembly
+ * never starts another one: it is always admitted, so that the buffers are
+ * eventually freed.
+ */
+class Reassembly {
+
+    /**
+     * The number of bytes allocated by the reassemblies of all the hosts.
+     */
+    private static final AtomicLong reserved = new AtomicLong();
+
+    /**
+     * The number of packets dropped because the budget was used.
+     */
+    private static final AtomicLong refused = new AtomicLong();
+
+    static {
+        LinkMetrics.register("pl.reassembly.bytes", reserved::get);
+        LinkMetrics.register("pl.reassembly.refused", refused::get);
+    }
+
+    /**
+     * The messages being reassembled, by origin ID and message ID.
+     */
+    private final Map<Integer, Map<Long, Partial>> partials = new HashMap<>();
+
+    /**
+     * Check whether a received packet can be accepted, and start the reassemblies
+     * of the messages it carries the first fragments of: the packet is accepted
+     * if the buffers of these messages fit in the budget, which is then reserved
+     * for them. A refused packet is counted.
+     *
+     * @param packet    The received packet.
+     * @param delivered Whether a message (origin ID, message ID) was already
+     *                  delivered, in which case its fragments are ignored.
+     * @return Whether the packet is accepted.
+     */
+    public synchronized boolean admits(Packet packet, BiPredicate<Integer, Long> delivered) {
+        List<Partial> starts = new ArrayList<>(1);
+        packet.deliverMessages(view -> {
+            if (view.isFragment() && find(view.getOriginId(), view.getMessageId()) == null
+                    && !delivered.test(view.getOriginId(), view.getMessageId())) {
+                for (Partial partial : starts) {
+                    if (partial.originId == view.getOriginId() && partial.messageId == view.getMessageId()) {
+                        return;
+                    }
+                }
+                starts.add(new Partial(view));
+            }
+        }, (originId, firstId, count) -> {
+        });
+        if (starts.isEmpty()) {
+            return true;
+        }
+        long bytes = 0;
+        for (Partial partial : starts) {
+            bytes += partial.totalLength;
+        }
+        if (!reserve(bytes)) {
+            refused.incrementAndGet();
+            return false;
+        }
+        for (Partial partial : starts) {
+            partial.payload = new byte[partial.totalLength];
+            partials.computeIfAbsent(partial.originId, k -> new HashMap<>()).put(partial.messageId, partial);
+        }
+        return true;
+    }
+
+    /**
+     * Reserve a number of bytes of the budget shared by all the hosts, if they
+     * fit in it.
+     *
+     * @param bytes The number of bytes to reserve.
+     * @return Whether the bytes were reserved.
+     */
+    private static boolean reserve(long bytes) {
+        long current;
+        do {
+            current = reserved.get();
+            if (current + bytes > Link.REASSEMBLY_BUDGET) {
+                return false;
+            }
+        } while (!reserved.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    /**
+     * Add a received fragment to its message, whose reassembly was started when
+     * the packet was admitted.
+     *
+     * @param view The fragment.
+     * @return The reassembled message, once its last fragment is added, or null.
+     */
+    public synchronized Message add(MessageView view) {
+        Partial partial = find(view.getOriginId(), view.getMessageId());
+        if (partial == null) {
+            // Not admitted (its message was already delivered).
+            return null;
+        }
+        view.copyPayload(partial.payload, view.getFragmentOffset());
+        partial.received.addMembers(view.getFragmentOffset() + 1L,
+                (long) view.getFragmentOffset() + view.getPayloadLength());
+        if (partial.received.getStateOfVc() < partial.payload.length) {
+            return null;
+        }
+        discard(view.getOriginId(), view.getMessageId());
+        return Message.createMessage(view.getOriginId(), view.getMessageId(), view.getLastHop(),
+                partial.dependencies, partial.payload, 0, partial.payload.length);
+    }
+
+    /**
+     * Forget the reassembly of a message, if any (e.g. once it was delivered).
+     *
+     * @param originId  The origin ID of the message.
+     * @param messageId The message ID of the message.
+     */
+    public synchronized void discard(int originId, long messageId) {
+        Map<Long, Partial> ofOrigin = partials.get(originId);
+        Partial partial = ofOrigin == null ? null : ofOrigin.remove(messageId);
+        if (partial != null) {
+            reserved.addAndGet(-partial.payload.length);
+        }
+    }
+
+    /**
+     * Find the reassembly of a message.
+     *
+     * @param originId  The origin ID of the message.
+     * @param messageId The message ID of the message.
+     * @return The reassembly of the message, or null if there is none.
+     */
+    private Partial find(int originId, long messageId) {
+        Map<Long, Partial> ofOrigin = partials.get(originId);
+        return ofOrigin == null ? null : ofOrigin.get(messageId);
+    }
+
+    /**
+     * A message being reassembled: its IDs, its payload (allocated once reserved),
+     * the bytes of it received so far (as positions starting at 1), and its
+     * dependencies.
+     */
+    private static class Partial {
+        private final int originId;
+        private final long messageId;
+        private final int totalLength;
+        private byte[] payload = null;
+        private final VectorClock received = new VectorClock();
+        private final long[] dependencies;
+
+        private Partial(MessageView view) {
+            this.originId = view.getOriginId();
+            this.messageId = view.getMessageId();
+            this.totalLength = view.getTotalLength();
+            this.dependencies = new long[view.getNbDependencies()];
+            for (int i = 0; i < dependencies.length; ++i) {
+                dependencies[i] = view.getDependency(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package cs451.link;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cs451.listener.HListener;
+import cs451.listener.PListener;
+import cs451.message.Packet;
+import cs451.message.PacketHeader;
+
+/**
+ * Receiving pipeline of one socket of the fair-loss link, made of 3 stages,
+ * each running in its own thread and connected by bounded single-producer,
+ * single-consumer queues:
+ *
+ * 1. raw receive: the socket thread fills a free slot and submits it,
+ *
+ * 2. decode: the packet header is read in place and filtered (generally to drop
+ * duplicates), then the packet is decoded and the decoding listener is called
+ * (generally to send acks),
+ *
+ * 3. dispatch: the packet is handed to the delivery listener (generally
+ * de-duplication and delivery to the upper layers), and its slot is freed.
+ *
+ * The socket thread never waits on the other stages: if no slot is free, the
+ * datagram is dropped (the link is fair-loss anyway) and counted.
+ */
+class ReceivePipeline {
+
+    /**
+     * The number of slots, i.e. the number of datagrams that can be in the
+     * pipeline at the same time.
+     */
+    private static final int NB_SLOTS = 128;
+
+    /**
+     * The free slots. Slots are taken by the receive stage, and given back by the
+     * dispatch stage.
+     */
+    private final SpscQueue<Slot> freeSlots = new SpscQueue<>(NB_SLOTS);
+
+    /**
+     * The slots filled by the receive stage, waiting to be decoded.
+     */
+    private final SpscQueue<Slot> toDecode = new SpscQueue<>(NB_SLOTS);
+
+    /**
+     * The slots decoded, waiting to be dispatched.
+     */
+    private final SpscQueue<Slot> toDispatch = new SpscQueue<>(NB_SLOTS);
+
+    /**
+     * The slot used to drain the socket when no other slot is free. Its contents
+     * are never decoded.
+     */
+    private final Slot discard = new Slot();
+
+    /**
+     * A slot taken by the receive stage but left unused, kept for the next datagram
+     * (the receive stage cannot give it back, as it is not the producer of the
+     * free slots' queue).
+     */
+    private Slot spare = null;
+
+    /**
+     * The number of datagrams dropped because no slot was free.
+     */
+    private final AtomicLong drops = new AtomicLong();
+
+    /**
+     * The filter called by the decode stage on the header of each datagram.
+     */
+    private final HListener filter;
+
+    /**
+     * The header of the datagram being decoded (decode stage only).
+     */
+    private final PacketHeader header = new PacketHeader();
+
+    /**
+     * The listener called by the decode stage.
+     */
+    private final PListener decoder;
+
+    /**
+     * The listener called by the dispatch stage.
+     */
+    private final PListener dispatcher;
+
+    /**
+     * The ID of the local host, used to decode multicast packets.
+     */
+    private final int myId;
+
+    /**
+     * Create a receiving pipeline, and register its occupancy in the link metrics.
+     *
+     * @param name       The name of the pipeline, used for the metrics.
+     * @param filter     The filter called on the header of each datagram, before
+     *                   it is decoded.
+     * @param decoder    The listener called once the packet is decoded.
+     * @param dispatcher The listener called to deliver the packet.
+     * @param myId       The ID of the local host.
+     */
+    public ReceivePipeline(String name, HListener filter, PListener decoder, PListener dispatcher, int myId) {
+        this.filter = filter;
+        this.decoder = decoder;
+        this.dispatcher = dispatcher;
+        this.myId = myId;
+        for (int i = 0; i < NB_SLOTS; ++i) {
+            freeSlots.offer(new Slot());
+        }
+
+        LinkMetrics.register(name + ".receive.slotsInUse", () -> NB_SLOTS - freeSlots.size());
+        LinkMetrics.register(name + ".receive.drops", drops::get);
+        LinkMetrics.register(name + ".decode.queued", toDecode::size);
+        LinkMetrics.register(name + ".dispatch.queued", toDispatch::size);
+    }
+
+    /**
+     * Get a free slot to receive a datagram into (receive stage only).
+     *
+     * @return A slot with a cleared buffer.
+     */
+    public Slot acquire() {
+        Slot slot = spare;
+        spare = null;
+        if (slot == null) {
+            slot = freeSlots.poll();
+        }
+        if (slot == null) {
+            slot = discard;
+        }
+        slot.buffer.clear();
+        return slot;
+    }
+
+    /**
+     * Submit a slot returned by acquire, once a datagram was received in its buffer
+     * (receive stage only).
+     *
+     * @param slot The filled slot.
+     */
+    public void submit(Slot slot) {
+        if (slot == discard) {
+            drops.incrementAndGet();
+        } else {
+            slot.buffer.flip();
+            toDecode.offer(slot);
+        }
+    }
+
+    /**
+     * Give back a slot returned by acquire, if nothing was received (receive stage
+     * only).
+     *
+     * @param slot The unused slot.
+     */
+    public void cancel(Slot slot) {
+        if (slot != discard) {
+            spare = slot;
+        }
+    }
+
+    /**
+     * Decode stage: read the header in place and filter it, then copy the received
+     * bytes, decode the packet and call the decoding listener. Multicast packets
+     * not addressed to the local host and filtered packets are neither copied nor
+     * decoded, and only passed on to free their slot.
+     */
+    public void decode() {
+        while (true) {
+            Slot slot = toDecode.take();
+            if (header.read(slot.buffer, myId) && filter.apply(header)) {
+                int length = slot.buffer.remaining();
+                slot.buffer.get(slot.data, 0, length);
+                slot.packet = Packet.deserialize(slot.data, length, myId);
+                if (slot.packet != null) {
+                    decoder.apply(slot.packet);
+                }
+            }
+            toDispatch.offer(slot);
+        }
+    }
+
+    /**
+     * Dispatch stage: deliver the decoded packet and free its slot.
+     */
+    public void dispatch() {
+        while (true) {
+            Slot slot = toDispatch.take();
+            if (slot.packet != null) {
+                dispatcher.apply(slot.packet);
+                slot.packet = null;
+            }
+            freeSlots.offer(slot);
+        }
+    }
+
+    /**
+     * A datagram travelling through the pipeline: the direct buffer it is received
+     * into, the array it is decoded from, and the decoded packet.
+     */
+    static class Slot {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(Packet.MAX_PAYLOAD_SIZE);
+        private final byte[] data = new byte[Packet.MAX_PAYLOAD_SIZE];
+        private Packet packet = null;
+
+        /**
+         * Get the buffer to receive the datagram into.
+         *
+         * @return The buffer of the slot.
+         */
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+    }
+}
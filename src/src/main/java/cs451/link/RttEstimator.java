@@ -0,0 +1,126 @@
+package cs451.link;
+
+/**
+ * Estimation of the retransmission timeout (RTO) of a distant host, following
+ * Jacobson and Karels (RFC 6298): a smoothed RTT and its mean deviation are
+ * updated with each RTT sample, and the RTO is the smoothed RTT plus four
+ * deviations (at least the timer granularity). A timeout doubles the RTO,
+ * which stays backed off until the next sample, once per timeout event: the
+ * packets sent before the last back-off do not back it off again. Samples must only be taken
+ * from packets that were never retransmitted (Karn's rule), as their ack
+ * could be the one of any of the copies.
+ *
+ * All times are in microseconds.
+ */
+class RttEstimator {
+
+    /**
+     * The gain of the smoothed RTT, as a shift (1/8).
+     */
+    private static final int SRTT_SHIFT = 3;
+
+    /**
+     * The gain of the RTT deviation, as a shift (1/4).
+     */
+    private static final int RTTVAR_SHIFT = 2;
+
+    /**
+     * The number of deviations added to the smoothed RTT.
+     */
+    private static final int K = 4;
+
+    /**
+     * The smoothed RTT, or a negative value before the first sample.
+     */
+    private long srttUs = -1;
+
+    /**
+     * The mean deviation of the RTT.
+     */
+    private long rttvarUs = 0;
+
+    /**
+     * The current retransmission timeout.
+     */
+    private long rtoUs = Link.TIMEOUT_MS * 1000;
+
+    /**
+     * The number of back-offs so far, i.e. of timeout events.
+     */
+    private long backOffs = 0;
+
+    /**
+     * Update the estimation with a new RTT sample, of a packet that was never
+     * retransmitted. Negative samples are ignored.
+     *
+     * @param rttUs The measured RTT.
+     */
+    public synchronized void sample(long rttUs) {
+        if (rttUs < 0) {
+            return;
+        }
+        if (srttUs < 0) {
+            srttUs = rttUs;
+            rttvarUs = rttUs / 2;
+        } else {
+            rttvarUs += (Math.abs(srttUs - rttUs) - rttvarUs) >> RTTVAR_SHIFT;
+            srttUs += (rttUs - srttUs) >> SRTT_SHIFT;
+        }
+        rtoUs = clamp(srttUs + Math.max(Link.MIN_TIMEOUT_US, K * rttvarUs));
+    }
+
+    /**
+     * Double the retransmission timeout after a packet timed out, if it was sent
+     * after the last back-off: the packets sent together time out together, and
+     * only the first of them starts a new timeout event.
+     *
+     * @param sentAt The number of back-offs when the packet was last sent (see
+     *               getBackOffs).
+     * @return Whether the timeout was backed off.
+     */
+    public synchronized boolean backOff(long sentAt) {
+        if (sentAt < backOffs) {
+            return false;
+        }
+        backOffs += 1;
+        rtoUs = clamp(rtoUs * 2);
+        return true;
+    }
+
+    /**
+     * Get the number of back-offs so far, to be recorded with each packet sent.
+     *
+     * @return The number of timeout events.
+     */
+    public synchronized long getBackOffs() {
+        return backOffs;
+    }
+
+    /**
+     * Get the current retransmission timeout.
+     *
+     * @return The retransmission timeout, in microseconds.
+     */
+    public synchronized long getRtoUs() {
+        return rtoUs;
+    }
+
+    /**
+     * Get the smoothed RTT.
+     *
+     * @return The smoothed RTT in microseconds, or 0 before the first sample.
+     */
+    public synchronized long getSrttUs() {
+        return Math.max(0, srttUs);
+    }
+
+    /**
+     * Bring a timeout between its bounds.
+     *
+     * @param timeoutUs The timeout.
+     * @return The timeout, between Link.MIN_TIMEOUT_US and Link.MAX_TIMEOUT.
+     */
+    private static long clamp(long timeoutUs) {
+        return Math.max(Link.MIN_TIMEOUT_US, Math.min(timeoutUs, Link.MAX_TIMEOUT * 1000));
+    }
+}
@@ -0,0 +1,348 @@
+package cs451.link;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cs451.parser.Host;
+
+/**
+ * Shared-memory transport of the fair-loss link, used between the processes of
+ * the same machine instead of UDP on the loopback interface: each pair of local
+ * processes exchanges its datagrams through one ShmRing per direction, under
+ * /dev/shm.
+ *
+ * Each process creates the rings it consumes (one per local distant host) when
+ * it starts. The ring towards a distant host is opened on first use: until it
+ * exists (the distant host is not started yet), datagrams are sent by UDP. A
+ * full ring drops the datagram, as the network would.
+ *
+ * The receiving thread polls its rings while there is traffic. Once they stay
+ * empty, it raises their sleeping flags and blocks on a doorbell, a loopback UDP
+ * socket: the next producer appending a datagram rings it with an empty
+ * datagram. Under load, the rings are thus used without any system call.
+ */
+class SharedMemory {
+
+    /**
+     * The directory of the rings.
+     */
+    private static final Path DIRECTORY = Paths.get("/dev/shm");
+
+    /**
+     * The number of bytes available in each ring.
+     */
+    private static final int RING_CAPACITY = 1 << 22;
+
+    /**
+     * The minimum time between two attempts to open the ring towards a distant
+     * host.
+     */
+    private static final long RETRY_INTERVAL_MS = 100;
+
+    /**
+     * The number of times the receiving thread spins on empty rings before
+     * sleeping.
+     */
+    private static final int IDLE_SPINS = 1 << 6;
+
+    /**
+     * The maximum time the receiving thread waits for its doorbell, in case a
+     * doorbell datagram is lost.
+     */
+    private static final long DOORBELL_TIMEOUT_MS = 100;
+
+    /**
+     * Whether each distant host runs on the local machine (indexed by host ID).
+     */
+    private final boolean[] local;
+
+    /**
+     * The base port of each host (indexed by host ID), used to name the rings.
+     */
+    private final int[] ports;
+
+    /**
+     * The ID of the local host.
+     */
+    private final int myId;
+
+    /**
+     * The rings from which datagrams are received, one per local distant host
+     * (receiving thread only).
+     */
+    private final ShmRing[] incoming;
+
+    /**
+     * The rings towards each local distant host, once opened (sending thread only,
+     * indexed by host ID).
+     */
+    private final ShmRing[] outgoing;
+
+    /**
+     * The time of the next attempt to open each ring towards a distant host
+     * (sending thread only, indexed by host ID).
+     */
+    private final long[] nextAttemptMs;
+
+    /**
+     * The address of the doorbell of each local distant host, once its ring is
+     * opened (sending thread only, indexed by host ID).
+     */
+    private final InetSocketAddress[] doorbells;
+
+    /**
+     * The socket used to ring the doorbells of the distant hosts (sending thread
+     * only).
+     */
+    private final DatagramChannel bell;
+
+    /**
+     * The (empty) datagram used to ring a doorbell (sending thread only).
+     */
+    private final ByteBuffer ringBuffer = ByteBuffer.allocateDirect(0);
+
+    /**
+     * The doorbell of the local host, on which the receiving thread blocks when the
+     * incoming rings stay empty.
+     */
+    private final DatagramChannel doorbell;
+
+    /**
+     * The selector used to wait for the doorbell.
+     */
+    private final Selector selector;
+
+    /**
+     * The buffer used to drain the doorbell (receiving thread only).
+     */
+    private final ByteBuffer doorbellBuffer = ByteBuffer.allocateDirect(1);
+
+    /**
+     * The index of the next incoming ring to poll.
+     */
+    private int nextRing = 0;
+
+    /**
+     * The number of consecutive polls that found all the rings empty.
+     */
+    private int idlePolls = 0;
+
+    // Transport statistics.
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong drops = new AtomicLong();
+    private final AtomicLong wakeUps = new AtomicLong();
+
+    /**
+     * Create the rings consumed by the local host, and register the statistics of
+     * the transport in the link metrics.
+     *
+     * @param hosts The complete list of hosts of the network.
+     * @param myId  The ID of the local host.
+     * @throws IOException If a ring cannot be created.
+     */
+    public SharedMemory(List<Host> hosts, int myId) throws IOException {
+        this.myId = myId;
+        local = new boolean[hosts.size() + 1];
+        ports = new int[hosts.size() + 1];
+        outgoing = new ShmRing[hosts.size() + 1];
+        nextAttemptMs = new long[hosts.size() + 1];
+        doorbells = new InetSocketAddress[hosts.size() + 1];
+        for (Host host : hosts) {
+            ports[host.getId()] = host.getPort();
+            local[host.getId()] = host.getId() != myId && isLocal(host.getIp());
+        }
+
+        int nbLocal = 0;
+        for (boolean isLocal : local) {
+            nbLocal += isLocal ? 1 : 0;
+        }
+        bell = DatagramChannel.open();
+        doorbell = DatagramChannel.open();
+        doorbell.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        doorbell.configureBlocking(false);
+        selector = Selector.open();
+        doorbell.register(selector, SelectionKey.OP_READ);
+        int doorbellPort = ((InetSocketAddress) doorbell.getLocalAddress()).getPort();
+
+        incoming = new ShmRing[nbLocal];
+        for (int i = 1, ring = 0; i < local.length; ++i) {
+            if (local[i]) {
+                Path path = ringPath(i, myId);
+                incoming[ring++] = ShmRing.create(path, RING_CAPACITY, doorbellPort);
+                path.toFile().deleteOnExit();
+            }
+        }
+
+        LinkMetrics.register("fl.shm.sent", sent::get);
+        LinkMetrics.register("fl.shm.received", received::get);
+        LinkMetrics.register("fl.shm.drops", drops::get);
+        LinkMetrics.register("fl.shm.wakeUps", wakeUps::get);
+    }
+
+    /**
+     * Check whether the given address belongs to the local machine.
+     *
+     * @param ip The IP address.
+     * @return Whether the address is local.
+     * @throws IOException If the address is invalid.
+     */
+    private static boolean isLocal(String ip) throws IOException {
+        InetAddress address = InetAddress.getByName(ip);
+        return address.isLoopbackAddress() || address.isAnyLocalAddress()
+                || NetworkInterface.getByInetAddress(address) != null;
+    }
+
+    /**
+     * Get the path of the ring between two hosts.
+     *
+     * @param from The ID of the producer.
+     * @param to   The ID of the consumer.
+     * @return The path of the ring.
+     */
+    private Path ringPath(int from, int to) {
+        return DIRECTORY.resolve("cs451-" + ports[from] + "-" + ports[to] + ".ring");
+    }
+
+    /**
+     * Send a datagram through shared memory, if the destination is a local host
+     * whose ring is available (sending thread only).
+     *
+     * @param hostId   The ID of the destination.
+     * @param datagram The datagram, between the position and the limit of the
+     *                 buffer.
+     * @return Whether the datagram was handled (sent, or dropped if the ring is
+     *         full), i.e. false if it should be sent by UDP.
+     */
+    public boolean transmit(int hostId, ByteBuffer datagram) {
+        if (!local[hostId]) {
+            return false;
+        }
+        ShmRing ring = outgoing[hostId];
+        if (ring == null) {
+            long now = System.currentTimeMillis();
+            if (now < nextAttemptMs[hostId]) {
+                return false;
+            }
+            ring = ShmRing.open(ringPath(myId, hostId));
+            if (ring == null) {
+                nextAttemptMs[hostId] = now + RETRY_INTERVAL_MS;
+                return false;
+            }
+            outgoing[hostId] = ring;
+            doorbells[hostId] = new InetSocketAddress(InetAddress.getLoopbackAddress(), ring.getDoorbell());
+        }
+        if (!ring.offer(datagram)) {
+            drops.incrementAndGet();
+            return true;
+        }
+        sent.incrementAndGet();
+        if (ring.takeWakeUp()) {
+            wakeUps.incrementAndGet();
+            try {
+                bell.send(ringBuffer.clear(), doorbells[hostId]);
+            } catch (IOException e) {
+                // The distant host wakes up on its own after a timeout anyway.
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Receive the next datagram of the incoming rings (receiving thread only). If
+     * all the rings are empty, spin for a while, then sleep until a producer rings
+     * the doorbell, so that an idle transport does not hog the CPU.
+     *
+     * @param destination The buffer in which to write the datagram, at its
+     *                    position.
+     * @return Whether a datagram was received.
+     */
+    public boolean receive(ByteBuffer destination) {
+        if (pollRings(destination)) {
+            idlePolls = 0;
+            return true;
+        }
+        idlePolls += 1;
+        if (idlePolls < IDLE_SPINS) {
+            Thread.onSpinWait();
+            return false;
+        }
+
+        // Check the rings one last time once the flags are raised, as a producer may
+        // have appended a datagram before seeing them.
+        idlePolls = 0;
+        setSleeping(true);
+        boolean found = pollRings(destination);
+        if (!found) {
+            waitForDoorbell();
+        }
+        setSleeping(false);
+        return found;
+    }
+
+    /**
+     * Poll the incoming rings one after the other, starting after the last ring
+     * that had a datagram.
+     *
+     * @param destination The buffer in which to write the datagram, at its
+     *                    position.
+     * @return Whether a datagram was received.
+     */
+    private boolean pollRings(ByteBuffer destination) {
+        for (int i = 0; i < incoming.length; ++i) {
+            ShmRing ring = incoming[nextRing];
+            nextRing = nextRing + 1 == incoming.length ? 0 : nextRing + 1;
+            if (ring.poll(destination)) {
+                received.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Raise or lower the sleeping flags of all the incoming rings.
+     *
+     * @param sleeping Whether the receiving thread is about to sleep.
+     */
+    private void setSleeping(boolean sleeping) {
+        for (ShmRing ring : incoming) {
+            ring.setSleeping(sleeping);
+        }
+    }
+
+    /**
+     * Block until the doorbell rings (or a timeout expires), and drain it.
+     */
+    private void waitForDoorbell() {
+        try {
+            selector.select(DOORBELL_TIMEOUT_MS);
+            selector.selectedKeys().clear();
+            while (doorbell.receive(doorbellBuffer.clear()) != null) {
+                // Only the wake-up matters.
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot receive packets!");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Check whether at least one distant host runs on the local machine.
+     *
+     * @return Whether shared memory is used at all.
+     */
+    public boolean hasLocalHosts() {
+        return incoming.length > 0;
+    }
+}
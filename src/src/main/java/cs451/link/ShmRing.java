@@ -0,0 +1,253 @@
+package cs451.link;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Lock-free, single-producer, single-consumer ring of datagrams in a
+ * memory-mapped file (generally under /dev/shm), shared by two processes of the
+ * same machine.
+ *
+ * The file is created by the consumer, and starts with a header: a magic
+ * number, the capacity of the ring, the PID of the consumer and the port of its
+ * doorbell, then the head (only written by the producer), the tail (only written
+ * by the consumer) and the sleeping flag, each on its own cache line. The
+ * consumer raises the flag before blocking on its doorbell socket: the producer
+ * then lowers it and rings the doorbell (see SharedMemory). Each record is the length of the datagram
+ * followed by its bytes, aligned on 8 bytes; a record that does not fit before
+ * the end of the ring is preceded by a wrap marker, and starts at the beginning
+ * of the ring.
+ */
+class ShmRing {
+
+    // Byte offsets used in the file.
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int PID_OFFSET = 8;
+    private static final int DOORBELL_OFFSET = 16;
+    private static final int HEAD_OFFSET = 64;
+    private static final int TAIL_OFFSET = 128;
+    private static final int SLEEPING_OFFSET = 192;
+    private static final int DATA_OFFSET = 256;
+
+    /**
+     * The number written at the start of a ring, once it is ready to be used.
+     */
+    private static final int MAGIC = 0xC5451;
+
+    /**
+     * The size of the header of a record (the length of the datagram, padded so
+     * that the datagram is aligned).
+     */
+    private static final int RECORD_HEADER_SIZE = Long.BYTES;
+
+    /**
+     * The length written in place of a record header to mark the end of the ring.
+     */
+    private static final int WRAP = -1;
+
+    // Atomic accesses to the mapped file.
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class,
+            ByteOrder.nativeOrder());
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+
+    /**
+     * The mapped file.
+     */
+    private final MappedByteBuffer buffer;
+
+    /**
+     * A view of the mapped file, used to copy the datagrams (by the only thread
+     * using this side of the ring).
+     */
+    private final ByteBuffer view;
+
+    /**
+     * The number of bytes available for the records (a power of 2).
+     */
+    private final int capacity;
+
+    /**
+     * The local copy of the head (producer only) or of the tail (consumer only).
+     */
+    private long position;
+
+    private ShmRing(MappedByteBuffer buffer, int capacity, long position) {
+        this.buffer = buffer;
+        this.view = buffer.duplicate();
+        this.capacity = capacity;
+        this.position = position;
+    }
+
+    /**
+     * Create a new, empty ring, replacing any previous file at the same path (left
+     * by a previous run). Called by the consumer.
+     *
+     * @param path     The path of the file.
+     * @param capacity The number of bytes available for the records (a power of
+     *                 2).
+     * @param doorbell The (loopback) port of the doorbell of the consumer.
+     * @return The newly created ring.
+     * @throws IOException If the file cannot be created.
+     */
+    public static ShmRing create(Path path, int capacity, int doorbell) throws IOException {
+        Files.deleteIfExists(path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + capacity);
+            INTS.set(buffer, CAPACITY_OFFSET, capacity);
+            LONGS.set(buffer, PID_OFFSET, ProcessHandle.current().pid());
+            INTS.set(buffer, DOORBELL_OFFSET, doorbell);
+            INTS.setRelease(buffer, MAGIC_OFFSET, MAGIC);
+            return new ShmRing(buffer, capacity, 0);
+        }
+    }
+
+    /**
+     * Open the ring created by the consumer. Called by the producer.
+     *
+     * @param path The path of the file.
+     * @return The ring, or null if it does not exist, is not ready yet, or was
+     *         left by a consumer that is not running anymore.
+     */
+    public static ShmRing open(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() <= DATA_OFFSET) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if ((int) INTS.getAcquire(buffer, MAGIC_OFFSET) != MAGIC) {
+                return null;
+            }
+            int capacity = (int) INTS.get(buffer, CAPACITY_OFFSET);
+            long pid = (long) LONGS.get(buffer, PID_OFFSET);
+            if (Integer.bitCount(capacity) != 1 || DATA_OFFSET + capacity != channel.size()
+                    || !ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false)) {
+                return null;
+            }
+            return new ShmRing(buffer, capacity, (long) LONGS.getAcquire(buffer, HEAD_OFFSET));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Append a datagram to the ring (producer only).
+     *
+     * @param datagram The datagram, between the position and the limit of the
+     *                 buffer (left unchanged).
+     * @return Whether the datagram was appended, i.e. false if the ring is full.
+     */
+    public boolean offer(ByteBuffer datagram) {
+        int length = datagram.remaining();
+        int recordSize = align(RECORD_HEADER_SIZE + length);
+        int index = index(position);
+        int padding = capacity - index < recordSize ? capacity - index : 0;
+
+        long tail = (long) LONGS.getAcquire(buffer, TAIL_OFFSET);
+        if (position + padding + recordSize - tail > capacity) {
+            return false;
+        }
+        if (padding > 0) {
+            INTS.set(buffer, DATA_OFFSET + index, WRAP);
+            index = 0;
+        }
+        int start = datagram.position();
+        view.position(DATA_OFFSET + index + RECORD_HEADER_SIZE);
+        view.put(datagram);
+        datagram.position(start);
+        INTS.set(buffer, DATA_OFFSET + index, length);
+        position += padding + recordSize;
+        LONGS.setVolatile(buffer, HEAD_OFFSET, position);
+        return true;
+    }
+
+    /**
+     * Check whether the consumer is sleeping, and if so, lower its sleeping flag
+     * (producer only, after offer). The head is published before the flag is read,
+     * so that the consumer either sees the new datagram before sleeping, or is
+     * woken up.
+     *
+     * @return Whether the doorbell of the consumer must be rung.
+     */
+    public boolean takeWakeUp() {
+        return (int) INTS.getVolatile(buffer, SLEEPING_OFFSET) != 0
+                && INTS.compareAndSet(buffer, SLEEPING_OFFSET, 1, 0);
+    }
+
+    /**
+     * Raise or lower the sleeping flag (consumer only). The flag must be raised
+     * before the ring is checked one last time.
+     *
+     * @param sleeping Whether the consumer is about to sleep.
+     */
+    public void setSleeping(boolean sleeping) {
+        INTS.setVolatile(buffer, SLEEPING_OFFSET, sleeping ? 1 : 0);
+    }
+
+    /**
+     * Get the port of the doorbell of the consumer.
+     *
+     * @return The (loopback) port of the doorbell.
+     */
+    public int getDoorbell() {
+        return (int) INTS.get(buffer, DOORBELL_OFFSET);
+    }
+
+    /**
+     * Take the next datagram of the ring, if any (consumer only).
+     *
+     * @param destination The buffer in which to write the datagram, at its
+     *                    position (which is moved after the datagram).
+     * @return Whether a datagram was taken, i.e. false if the ring is empty.
+     */
+    public boolean poll(ByteBuffer destination) {
+        long head = (long) LONGS.getVolatile(buffer, HEAD_OFFSET);
+        if (head == position) {
+            return false;
+        }
+        int index = index(position);
+        int length = (int) INTS.get(buffer, DATA_OFFSET + index);
+        if (length == WRAP) {
+            position += capacity - index;
+            index = 0;
+            length = (int) INTS.get(buffer, DATA_OFFSET + index);
+        }
+        int start = DATA_OFFSET + index + RECORD_HEADER_SIZE;
+        view.limit(start + length).position(start);
+        destination.put(view);
+        view.limit(view.capacity());
+        position += align(RECORD_HEADER_SIZE + length);
+        LONGS.setRelease(buffer, TAIL_OFFSET, position);
+        return true;
+    }
+
+    /**
+     * Get the index in the ring corresponding to a given position.
+     *
+     * @param position The position (head or tail).
+     * @return The index of the position in the ring.
+     */
+    private int index(long position) {
+        return (int) (position & (capacity - 1));
+    }
+
+    /**
+     * Round a size up to a multiple of 8 bytes.
+     *
+     * @param size The size to align.
+     * @return The aligned size.
+     */
+    private static int align(int size) {
+        return (size + Long.BYTES - 1) & -Long.BYTES;
+    }
+}
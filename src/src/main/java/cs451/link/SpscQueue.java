@@ -0,0 +1,144 @@
+package cs451.link;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free queue for exactly one producer thread and one consumer
+ * thread. Used to connect the stages of the receiving pipeline.
+ *
+ * @param <T> The type of the elements of the queue.
+ */
+class SpscQueue<T> {
+
+    /**
+     * The number of busy-waiting iterations before the consumer parks.
+     */
+    private static final int SPINS = 1 << 10;
+
+    /**
+     * The maximum time the consumer parks before checking the queue again.
+     */
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * The ring buffer (its size is a power of 2).
+     */
+    private final Object[] buffer;
+
+    /**
+     * The mask used to compute an index in the ring buffer.
+     */
+    private final int mask;
+
+    /**
+     * The index of the next element to take (only written by the consumer).
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * The index of the next element to add (only written by the producer).
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The consumer thread, when it is parked waiting for an element.
+     */
+    private volatile Thread waiting = null;
+
+    /**
+     * Create a bounded queue.
+     *
+     * @param capacity The minimum capacity of the queue (rounded up to a power of
+     *                 2).
+     */
+    public SpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        buffer = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Add an element at the end of the queue, if it is not full. Only called by the
+     * producer.
+     *
+     * @param e The element to add.
+     * @return Whether the element was added.
+     */
+    public boolean offer(T e) {
+        long t = tail.get();
+        if (t - head.get() == buffer.length) {
+            return false;
+        }
+        buffer[(int) t & mask] = e;
+        tail.set(t + 1);
+        Thread consumer = waiting;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Take the first element of the queue, if any. Only called by the consumer.
+     *
+     * @return The first element of the queue, or null if it is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        int index = (int) h & mask;
+        T e = (T) buffer[index];
+        buffer[index] = null;
+        head.set(h + 1);
+        return e;
+    }
+
+    /**
+     * Take the first element of the queue, waiting for one if the queue is empty.
+     * Only called by the consumer.
+     *
+     * @return The first element of the queue.
+     */
+    public T take() {
+        T e;
+        int spins = 0;
+        while ((e = poll()) == null) {
+            if (spins < SPINS) {
+                spins += 1;
+                Thread.onSpinWait();
+            } else {
+                waiting = Thread.currentThread();
+                if ((e = poll()) != null) {
+                    waiting = null;
+                    return e;
+                }
+                LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                waiting = null;
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Get the current number of elements in the queue.
+     *
+     * @return The number of elements in the queue.
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Get the capacity of the queue.
+     *
+     * @return The capacity of the queue.
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+}
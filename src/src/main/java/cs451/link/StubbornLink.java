@@ -1,18 +1,35 @@
 package cs451.link;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
 
 import cs451.listener.PListener;
+import cs451.message.Frame;
 import cs451.message.Message;
+import cs451.message.MessageSizer;
 import cs451.message.Packet;
+import cs451.message.PacketHeader;
 import cs451.parser.Host;
 
 /**
  * Stubborn link abstraction. Implements the stubborn delivery and no creation
  * properties.
+ *
+ * The packets waiting to be acked are resent by a single thread, from a timer
+ * wheel keyed by their retransmission deadline: acks cancel the timers of the
+ * packets they acknowledge as soon as they are received, and the thread sleeps
+ * until the next deadline, unless new messages or acks wake it up.
  */
 class StubbornLink extends AbstractLink {
 
@@ -23,9 +40,59 @@ class StubbornLink extends AbstractLink {
     private static final int RETRIEVING_ATTEMPTS = 3;
 
     /**
-     * The underlying fair-loss link.
+     * The underlying transport (generally, the fair-loss link).
      */
-    private final FairLossLink fLink;
+    private final Transport fLink;
+
+    /**
+     * The frames shared by the messages sent to several hosts at once.
+     */
+    private final FanOut fanOut;
+
+    /**
+     * The number of data packets dropped on their header, as already delivered.
+     */
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * The retransmission timers of the packets waiting to be acked, for all hosts.
+     */
+    private final TimerWheel timers = new TimerWheel();
+
+    /**
+     * The packets acked and not yet handed back up as echoes, their timers being
+     * already cancelled. They are handled by a thread of their own, as delivering
+     * them may block on the upper layer.
+     */
+    private final BlockingQueue<WaitingPacket> acked = new LinkedBlockingQueue<>();
+
+    /**
+     * The number of messages sent and not yet handed back up as echoes, i.e. of
+     * the messages in flight or acked, which will take room in the buffer of the
+     * delivered messages.
+     */
+    private final AtomicInteger ownEchoes = new AtomicInteger();
+
+    /**
+     * The number of retransmitted packets.
+     */
+    private final AtomicLong retransmissions = new AtomicLong();
+
+    /**
+     * The budget of packets in flight, shared by all hosts.
+     */
+    private final InFlightBudget budget;
+
+    /**
+     * The free space of the buffer of the delivered messages, in messages, or null
+     * if it is unbounded.
+     */
+    private volatile IntSupplier deliveryBuffer = null;
+
+    /**
+     * The thread sending and resending the packets, once started.
+     */
+    private volatile Thread sendingThread = null;
 
     /**
      * Create a stubborn link.
@@ -34,80 +101,338 @@ class StubbornLink extends AbstractLink {
      * @param hosts    The complete list of hosts of the network.
      * @param listener The listener to call once a packet is delivered.
      * @param myId     The ID of the local host.
+     * @param provider The provider of the underlying transport.
      */
-    public StubbornLink(int port, List<Host> hosts, PListener listener, int myId) {
+    public StubbornLink(int port, List<Host> hosts, PListener listener, int myId, TransportProvider provider) {
         super(listener, myId, hosts);
-        this.fLink = new FairLossLink(port, hosts, this::deliver, myId);
+        this.fLink = provider.create(port, hosts, this::acknowledge, this::deliver, myId);
+        this.fanOut = new FanOut(fLink.isMulticast() ? this::multicastFrame : this::queueFrame);
+        // A message depends on at most all the other hosts, and carries at most a
+        // fragment of payload: it must fit in a packet on its own.
+        int maxMessageSize = Packet.BASIC_MESSAGE_SIZE + (hosts.size() - 1) * Packet.SIZE_OF_DEPENDENCY
+                + Packet.PAYLOAD_HEADER_SIZE + Link.FRAGMENT_SIZE;
+        if (Packet.MAX_HEADER_SIZE + maxMessageSize > Packet.MAX_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException(
+                    "Too many hosts (" + hosts.size() + "): a message may not fit in a packet.");
+        }
+        this.budget = new InFlightBudget(Link.WINDOW_SIZE / 2, getHostInfo().values());
+        fLink.setHeaderFilter(this::filterDuplicate);
+        LinkMetrics.register("sl.duplicates", duplicates::get);
+        LinkMetrics.register("sl.timers", timers::size);
+        LinkMetrics.register("sl.retransmissions", retransmissions::get);
+        LinkMetrics.register("sl.ownEchoes", ownEchoes::get);
 
-        // Create a thread whose sole job is to empty waiting queues and check if
-        // messages were acked, or otherwise resend them.
-        ExecutorService executor = Executors.newFixedThreadPool(1);
+        // Create a thread whose sole job is to empty waiting queues, and resend the
+        // packets not acked in time, and another one handing the acked packets back
+        // up, so that the former never waits for the upper layer.
+        ExecutorService executor = Executors.newFixedThreadPool(2);
         executor.execute(this::stubbornSend);
+        executor.execute(this::handleAcked);
     }
 
     @Override
     public void send(Message message, int hostId) {
         HostInfo host = getHostInfo(hostId);
-        host.addMessageInWaitingList(message);
+        List<Message> fragments = fragment(message);
+        if (fragments.size() > 1) {
+            host.expectEchoes(message, fragments.size());
+        }
+        for (Message fragment : fragments) {
+            host.addMessageInWaitingList(fragment);
+        }
+        wakeUp();
+    }
+
+    @Override
+    public void broadcast(Message message, List<Integer> hostIds) {
+        List<Message> fragments = fragment(message);
+        if (fragments.size() > 1) {
+            for (int hostId : hostIds) {
+                getHostInfo(hostId).expectEchoes(message, fragments.size());
+            }
+        }
+        for (Message fragment : fragments) {
+            fanOut.add(fragment, hostIds);
+        }
+        wakeUp();
+    }
+
+    /**
+     * Split a message whose payload is larger than Link.FRAGMENT_SIZE into
+     * fragments, sharing its payload, so that each of them fits in a packet beside
+     * other messages. They are reassembled by the receiving perfect link.
+     *
+     * @param message The message to send.
+     * @return The fragments of the message, or the message itself if it is small
+     *         enough.
+     */
+    private static List<Message> fragment(Message message) {
+        int length = message.getPayloadLength();
+        if (length <= Link.FRAGMENT_SIZE) {
+            return List.of(message);
+        }
+        if (length > Link.REASSEMBLY_BUDGET) {
+            throw new IllegalArgumentException("Payload of " + length + " bytes larger than the reassembly budget.");
+        }
+        List<Message> fragments = new ArrayList<>(length / Link.FRAGMENT_SIZE + 1);
+        for (int from = 0; from < length; from += Link.FRAGMENT_SIZE) {
+            fragments.add(message.fragment(from, Math.min(Link.FRAGMENT_SIZE, length - from)));
+        }
+        return fragments;
+    }
+
+    @Override
+    public void setDeliveryBuffer(IntSupplier freeSpace) {
+        deliveryBuffer = freeSpace;
+    }
+
+    /**
+     * Get the window advertised to each distant host: its share of the free space
+     * of the buffer of the delivered messages, once the echoes of the messages
+     * sent by the local host are set aside, as they go through the same buffer.
+     * All the hosts together thus never have more messages in flight than the
+     * buffer can take, although the echoes may still fill it if the local host
+     * has more messages in flight than the buffer can take.
+     *
+     * @return The advertised window, in messages.
+     */
+    private int advertisedWindow() {
+        IntSupplier freeSpace = deliveryBuffer;
+        if (freeSpace == null) {
+            return Integer.MAX_VALUE;
+        }
+        return Math.max(0, freeSpace.getAsInt() - ownEchoes.get()) / Math.max(1, getHostInfo().size());
     }
 
     @Override
-    public void sendRange(int hostId, int originId, int messageId) {
+    public void sendRange(int hostId, int originId, long messageId) {
         HostInfo hostInfo = getHostInfo(hostId);
         hostInfo.sendRange(originId, 1, messageId);
     }
 
     /**
-     * Send acks to hosts sending us messages (not acks), and deliver the message
-     * (to the next layer).
+     * Queue a sealed frame for each of its destinations, each one holding a
+     * reference to it.
      *
-     * @param message The message that is delivered by the underlying link.
+     * @param frame   The sealed frame.
+     * @param hostIds The IDs of the destinations of the frame.
      */
-    private void deliver(Packet packet) {
+    private void queueFrame(Frame frame, List<Integer> hostIds) {
+        for (int hostId : hostIds) {
+            getHostInfo(hostId).addFrameInWaitingList(frame);
+        }
+    }
+
+    /**
+     * Send a sealed frame once to the multicast group, for all the destinations
+     * whose window is not full: each of them gets its own packet number in the
+     * destination table, and its own packet in its "stubborn" queue, so that the
+     * frame is retransmitted and acked by unicast. The frame is queued for the
+     * other destinations, as in unicast mode. The destination table of a packet
+     * is bounded: beyond MAX_MULTICAST_DESTINATIONS ready destinations, the frame
+     * is multicast in several packets.
+     *
+     * @param frame   The sealed frame.
+     * @param hostIds The IDs of the destinations of the frame.
+     */
+    private void multicastFrame(Frame frame, List<Integer> hostIds) {
+        List<Integer> ready = new ArrayList<>(hostIds.size());
+        for (int hostId : hostIds) {
+            HostInfo host = getHostInfo(hostId);
+            if (host.canSendWaitingMessages()) {
+                ready.add(hostId);
+            } else {
+                host.addFrameInWaitingList(frame);
+            }
+        }
+        for (int from = 0; from < ready.size(); from += Packet.MAX_MULTICAST_DESTINATIONS) {
+            multicastPacket(frame, ready.subList(from,
+                    Math.min(ready.size(), from + Packet.MAX_MULTICAST_DESTINATIONS)));
+        }
+    }
+
+    /**
+     * Send a sealed frame once to the multicast group, for destinations whose
+     * window is not full (at most MAX_MULTICAST_DESTINATIONS of them).
+     *
+     * @param frame The sealed frame.
+     * @param ready The IDs of the destinations of the packet.
+     */
+    private void multicastPacket(Frame frame, List<Integer> ready) {
+        int[] readyIds = new int[ready.size()];
+        int[] packetNumbers = new int[ready.size()];
+        Packet[] packets = new Packet[ready.size()];
+        for (int i = 0; i < readyIds.length; ++i) {
+            readyIds[i] = ready.get(i);
+            packetNumbers[i] = getHostInfo(readyIds[i]).getNewPacketNumber();
+            packets[i] = Packet.createPacket(frame, packetNumbers[i], getMyId());
+        }
+        for (int i = 0; i < readyIds.length; ++i) {
+            confirm(packets[i], readyIds[i], getHostInfo(readyIds[i]));
+        }
+        fLink.multicast(Packet.createMulticastPacket(frame, readyIds, packetNumbers, getMyId()));
+    }
+
+    /**
+     * Send acks to hosts sending us messages (not acks), or apply acks and take the
+     * timeout into account. Called as soon as a packet is received, before it is
+     * delivered.
+     *
+     * @param packet The packet that is received by the underlying link.
+     */
+    private void acknowledge(Packet packet) {
         int hostId = packet.getLastHop();
+        HostInfo host = getHostInfo(hostId);
 
         if (!packet.isAck()) {
-            fLink.send(packet.toAck(getMyId()), hostId);
+            // A packet that would exceed the reassembly budget is dropped, as if it was
+            // lost: the distant host sends it again later.
+            if (!host.admits(packet)) {
+                packet.drop();
+                return;
+            }
+            fLink.send(host.acknowledge(packet, getMyId(), advertisedWindow()), hostId);
         } else {
-            // Reset the timeout, as we got an answer from the distant host.
-            getHostInfo(hostId).resetTimeout(packet);
+            // Apply the ack, and reset the timeout, as we got an answer from the distant
+            // host. The timers of the acked packets are cancelled, they are queued to be
+            // handed back up, and the sending thread is woken up, as the window of the
+            // host has room again. A packet deemed lost expires straight away.
+            host.markDelivered(packet);
+            host.applyAdvertisedWindow(packet);
+            host.resetTimeout(packet);
+            int count = host.removeAckedPackets(wp -> {
+                timers.cancel(wp);
+                acked.add(wp);
+            }, wp -> {
+                timers.schedule(wp, 0);
+                wakeUp();
+            });
+            if (count > 0) {
+                wakeUp();
+            }
+        }
+    }
+
+    /**
+     * Drop the data packets already delivered as soon as their header is received,
+     * so that they are never deserialized nor passed up: they are acknowledged
+     * again straight away, as the previous ack may have been lost. Called by the
+     * receiving threads of the underlying transport.
+     *
+     * @param header The header of the received packet.
+     * @return Whether the packet must be deserialized and delivered.
+     */
+    private boolean filterDuplicate(PacketHeader header) {
+        if (header.isAck()) {
+            return true;
         }
+        int hostId = header.getLastHop();
+        HostInfo host = getHostInfo(hostId);
+        if (!host.isDelivered(header)) {
+            return true;
+        }
+        duplicates.incrementAndGet();
+        fLink.send(host.acknowledge(header, getMyId(), advertisedWindow()), hostId);
+        return false;
+    }
 
-        // An ack gives us valuable information. We treat them as if they were messages
-        // in themselves.
-        handleListener(packet);
+    /**
+     * Deliver the packet (to the next layer). Acks were already applied, and carry
+     * no message; dropped packets were not acknowledged.
+     *
+     * @param packet The packet that is delivered by the underlying link.
+     */
+    private void deliver(Packet packet) {
+        if (!packet.isAck() && !packet.isDropped()) {
+            handleListener(packet);
+        }
     }
 
     /**
-     * Core function of the stubborn link, which empties waiting queues and re-sends
-     * packets if and when necessary.
+     * Core function of the stubborn link, which empties waiting queues, re-sends
+     * the packets whose timer expired and periodically
+     * redistributes the in-flight budget among the hosts. When there
+     * is nothing to do, the thread sleeps until the next timer (or the flush of
+     * the open frames), unless it is woken up by new messages or acks.
      */
     private void stubbornSend() {
+        sendingThread = Thread.currentThread();
+        while (true) {
+            fanOut.flush();
+            budget.rebalance();
+            boolean busy = timers.expire(this::retransmit) > 0;
+            for (Map.Entry<Integer, HostInfo> entry : getHostInfo().entrySet()) {
+                busy |= emptyWaitingQueue(entry.getKey(), entry.getValue());
+            }
+            if (!busy) {
+                // The budget is redistributed on time, even if nothing else wakes us up.
+                long sleepNs = Math.min(Math.min(timers.nanosToNextTick(), budget.nanosToNextRebalance()),
+                        TimeUnit.MILLISECONDS.toNanos(fanOut.isEmpty() ? Link.TIMEOUT_MS : FanOut.LINGER_MS));
+                LockSupport.parkNanos(this, sleepNs);
+            }
+        }
+    }
+
+    /**
+     * Wake up the sending thread, if it is sleeping.
+     */
+    private void wakeUp() {
+        Thread thread = sendingThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Handle the acked packets, as they are acked: an ack gives us valuable
+     * information, i.e. the messages of the packet were delivered by the distant
+     * host. We treat them as if it had sent them back. Then, the reference to the
+     * frame of the packet can be released.
+     */
+    private void handleAcked() {
         while (true) {
-            getHostInfo().forEach(this::checkNextPacketToConfirm);
+            WaitingPacket wp;
+            try {
+                wp = acked.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            handleListener(wp.getPacket().toAcked(wp.getHostId()));
+            ownEchoes.addAndGet(-wp.getPacket().getNbMessages());
+            wp.getPacket().release();
         }
     }
 
     /**
-     * Check if the next "stubborn" packet, i.e. waiting to be acked, of this
-     * particular host was acked or should be resent.
+     * Resend a packet whose timer expired, if it was not acked meanwhile, and
+     * schedule its next retransmission after the (backed off) timeout of its
+     * host.
      *
-     * @param hostId The ID of the host.
-     * @param host   The network information related to the host.
+     * @param wp The packet whose timer expired.
      */
-    private void checkNextPacketToConfirm(int hostId, HostInfo host) {
-        List<WaitingPacket> wps = host.getNextStubbornPackets();
-        for (WaitingPacket wp : wps) {
-            if (!host.isMineDelivered(wp.getPacket())) {
-                WaitingPacket newWp = wp.resendIfTimedOut(() -> fLink.send(wp.getPacket().resetTimestamp(), hostId));
-                try {
-                    host.addPacketToConfirm(newWp);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
+    private void retransmit(WaitingPacket wp) {
+        HostInfo host = wp.getHost();
+        if (host.isMineDelivered(wp.getPacket())) {
+            // Acked beyond the ranges whose timers are cancelled on reception.
+            if (host.removePacketToConfirm(wp)) {
+                acked.add(wp);
             }
+            return;
+        }
+        // The timer is scheduled again before sending, atomically with the check, so
+        // that an ack received meanwhile cancels it. A reference to the frame is taken
+        // meanwhile as well, as the packet may be acked and released before being
+        // sent.
+        if (!host.retransmitting(wp, w -> {
+            timers.schedule(w, host.getTimeout());
+            w.getPacket().retain();
+        })) {
+            return;
         }
-        emptyWaitingQueue(hostId, host);
+        retransmissions.incrementAndGet();
+        fLink.send(wp.getPacket().resetTimestamp(), wp.getHostId());
+        wp.getPacket().release();
     }
 
     /**
@@ -116,28 +441,42 @@ class StubbornLink extends AbstractLink {
      *
      * @param hostId The ID of the host.
      * @param host   The network information related to the host.
+     * @return Whether a packet was sent.
      */
-    private void emptyWaitingQueue(int hostId, HostInfo host) {
+    private boolean emptyWaitingQueue(int hostId, HostInfo host) {
         if (host.canSendWaitingMessages()) {
-            List<Message> messages = retrieveAListOfMessages(host);
-            createAndSendPacket(messages, hostId, host);
+            Frame frame = host.getNextWaitingFrame();
+            if (frame != null) {
+                Packet packet = Packet.createPacket(frame, host.getNewPacketNumber(), getMyId());
+                sendAndConfirm(packet, hostId, host);
+                return true;
+            } else if (host.hasWaitingMessages()) {
+                List<Message> messages = retrieveAListOfMessages(host, host.getAdvertisedRoom());
+                return createAndSendPacket(messages, hostId, host);
+            }
         }
+        return false;
     }
 
     /**
-     * For a given host, retrieve a list of waiting messages.
+     * For a given host, retrieve a list of waiting messages, as many as fit in a
+     * packet and in the room left by the window advertised by the host: each
+     * message is charged at its exact encoded size, before it is taken from the
+     * waiting queue.
      *
-     * @param host The network information related to the host.
+     * @param host        The network information related to the host.
+     * @param maxMessages The maximum number of messages to retrieve.
      * @return The retrieved list of waiting messages.
      */
-    private List<Message> retrieveAListOfMessages(HostInfo host) {
+    static List<Message> retrieveAListOfMessages(HostInfo host, int maxMessages) {
         List<Message> messages = new LinkedList<>();
-        int byteCount = Packet.CONTENTS_OFFSET;
+        MessageSizer sizer = new MessageSizer();
+        int room = Packet.MAX_PAYLOAD_SIZE - Packet.MAX_HEADER_SIZE;
         int attempts = 0;
 
-        // Fill a network packet to the maximum safe capacity
-        while (byteCount < Packet.SAFE_MAX_PAYLOAD_SIZE && attempts < RETRIEVING_ATTEMPTS) {
-            Message m = host.getNextWaitingMessage();
+        // Fill a network packet to its maximum capacity
+        while (attempts < RETRIEVING_ATTEMPTS && messages.size() < maxMessages) {
+            Message m = host.peekNextWaitingMessage();
             if (m == null) {
                 // Sleep for a moment, in order to fill the packet to the max
                 attempts += 1;
@@ -147,9 +486,15 @@ class StubbornLink extends AbstractLink {
                     Thread.currentThread().interrupt();
                     return messages;
                 }
+            } else if (!sizer.accepts(m) || sizer.getLength() + sizer.sizeOf(m) > room) {
+                // A message extending a run takes (almost) no room, so the packet is only
+                // full once the next message does not fit (a fragment does not fit beside
+                // the fragments of another message).
+                break;
             } else {
+                host.getNextWaitingMessage();
                 messages.add(m);
-                byteCount += Packet.BASIC_MESSAGE_SIZE + Packet.SIZE_OF_DEPENDENCY * m.getDependencies().size();
+                sizer.add(m);
                 attempts = 0;
             }
         }
@@ -162,17 +507,43 @@ class StubbornLink extends AbstractLink {
      * @param messages The list of message to send in one packet.
      * @param hostId   The ID of the host.
      * @param host     The network information related to the host.
+     * @return Whether a packet was sent.
      */
-    private void createAndSendPacket(List<Message> messages, int hostId, HostInfo host) {
-        if (!messages.isEmpty()) {
-            Packet packet = Packet.createPacket(messages, host.getNewPacketNumber(), getMyId());
-            fLink.send(packet, hostId);
-            WaitingPacket wpa = new WaitingPacket(packet, host);
-            try {
-                host.addPacketToConfirm(wpa);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
+    private boolean createAndSendPacket(List<Message> messages, int hostId, HostInfo host) {
+        if (messages.isEmpty()) {
+            return false;
         }
+        Packet packet = Packet.createPacket(messages, host.getNewPacketNumber(), getMyId());
+        sendAndConfirm(packet, hostId, host);
+        return true;
+    }
+
+    /**
+     * Sends a packet and adds it to the "stubborn" packets of the host, waiting to
+     * be acked.
+     *
+     * @param packet The packet to send.
+     * @param hostId The ID of the host.
+     * @param host   The network information related to the host.
+     */
+    private void sendAndConfirm(Packet packet, int hostId, HostInfo host) {
+        confirm(packet, hostId, host);
+        fLink.send(packet, hostId);
+    }
+
+    /**
+     * Add a packet about to be sent to the "stubborn" packets of the host, and
+     * schedule its retransmission after the timeout of the host. This is done
+     * before the packet is sent, so that its ack cannot be received before.
+     *
+     * @param packet The packet to send.
+     * @param hostId The ID of the host.
+     * @param host   The network information related to the host.
+     */
+    private void confirm(Packet packet, int hostId, HostInfo host) {
+        WaitingPacket wp = new WaitingPacket(packet, hostId, host);
+        ownEchoes.addAndGet(packet.getNbMessages());
+        host.addPacketToConfirm(wp);
+        timers.schedule(wp, host.getTimeout());
     }
 }
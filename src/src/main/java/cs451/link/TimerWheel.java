@@ -0,0 +1,281 @@
+package cs451.link;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timer wheel, with a tick of one millisecond: LEVELS wheels of
+ * SLOTS slots each, the slots of a level spanning SLOTS times more time than
+ * the slots of the level below. A timer is put in the level of the highest
+ * digit (in base SLOTS) by which its deadline differs from the current tick,
+ * and is moved down (cascaded) once the current tick reaches its slot, until
+ * it expires from the first level. Scheduling and cancelling a timer take a
+ * constant time, and expiring timers is proportional to the number of expired
+ * timers (plus the elapsed ticks), whatever the number of pending timers.
+ *
+ * The wheel is shared by the thread expiring the timers and the threads
+ * scheduling or cancelling them, and is thus synchronized. The expired timers
+ * are handled outside of the lock.
+ */
+class TimerWheel {
+
+    /**
+     * The number of bits of the slot index of each level.
+     */
+    private static final int LEVEL_BITS = 6;
+
+    /**
+     * The number of slots of each level.
+     */
+    private static final int SLOTS = 1 << LEVEL_BITS;
+
+    /**
+     * The number of levels. Deadlines further than SLOTS^LEVELS ticks (about 4.6
+     * hours) are brought back to it.
+     */
+    private static final int LEVELS = 4;
+
+    /**
+     * The furthest deadline that can be scheduled, in ticks from the current one.
+     */
+    private static final long MAX_DELAY = (1L << (LEVEL_BITS * LEVELS)) - 1;
+
+    /**
+     * The sentinels of the circular lists of timers of each slot of each level.
+     */
+    private final Timer[][] slots = new Timer[LEVELS][SLOTS];
+
+    /**
+     * The reference of the clock of the wheel, in nanoseconds.
+     */
+    private final long origin = System.nanoTime();
+
+    /**
+     * The next tick to process: all the timers with an earlier deadline expired.
+     */
+    private long current = 0;
+
+    /**
+     * The number of scheduled timers.
+     */
+    private int size = 0;
+
+    /**
+     * Create an empty timer wheel, starting at the current time.
+     */
+    public TimerWheel() {
+        for (Timer[] level : slots) {
+            for (int i = 0; i < SLOTS; ++i) {
+                level[i] = new Timer();
+            }
+        }
+    }
+
+    /**
+     * Get the current tick of the clock of the wheel.
+     *
+     * @return The number of milliseconds elapsed since the creation of the wheel.
+     */
+    private long now() {
+        return (System.nanoTime() - origin) / 1_000_000;
+    }
+
+    /**
+     * Schedule a timer, or re-schedule it if it was already scheduled.
+     *
+     * @param timer   The timer to schedule.
+     * @param delayMs The delay after which the timer expires, in milliseconds.
+     */
+    public synchronized void schedule(Timer timer, long delayMs) {
+        if (timer.isScheduled()) {
+            timer.unlink();
+            size -= 1;
+        }
+        long nowTick = now();
+        if (size == 0 && nowTick > current) {
+            // Nothing to expire in between: jump straight to the current time.
+            current = nowTick;
+        }
+        timer.deadline = Math.max(nowTick, current) + Math.max(0, Math.min(delayMs, MAX_DELAY));
+        place(timer);
+        size += 1;
+    }
+
+    /**
+     * Cancel a timer, if it is scheduled.
+     *
+     * @param timer The timer to cancel.
+     * @return Whether the timer was scheduled.
+     */
+    public synchronized boolean cancel(Timer timer) {
+        if (!timer.isScheduled()) {
+            return false;
+        }
+        timer.unlink();
+        size -= 1;
+        return true;
+    }
+
+    /**
+     * Expire all the timers whose deadline is reached, and call the given function
+     * on each of them (outside of the lock, so that it may schedule them again).
+     *
+     * @param <T>      The type of the timers.
+     * @param onExpiry The function called on each expired timer.
+     * @return The number of expired timers.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Timer> int expire(Consumer<T> onExpiry) {
+        List<Timer> expired = new ArrayList<>();
+        synchronized (this) {
+            long nowTick = now();
+            if (size == 0) {
+                current = Math.max(current, nowTick + 1);
+            }
+            for (; current <= nowTick && size > 0; ++current) {
+                for (int level = LEVELS - 1; level > 0; --level) {
+                    if ((current & ((1L << (level * LEVEL_BITS)) - 1)) == 0) {
+                        cascade(slots[level][digit(current, level)]);
+                    }
+                }
+                Timer sentinel = slots[0][digit(current, 0)];
+                while (sentinel.next != sentinel) {
+                    Timer timer = sentinel.next;
+                    timer.unlink();
+                    expired.add(timer);
+                    size -= 1;
+                }
+            }
+            if (size == 0) {
+                current = Math.max(current, nowTick + 1);
+            }
+        }
+        for (Timer timer : expired) {
+            onExpiry.accept((T) timer);
+        }
+        return expired.size();
+    }
+
+    /**
+     * Get the time until the next tick at which a timer may expire, or be moved
+     * down a level (which is never later than its deadline).
+     *
+     * @return The time until the next tick to process, in nanoseconds, or
+     *         Long.MAX_VALUE if no timer is scheduled.
+     */
+    public synchronized long nanosToNextTick() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        long next = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; ++level) {
+            int shift = level * LEVEL_BITS;
+            long span = 1L << (shift + LEVEL_BITS);
+            for (int i = 0; i < SLOTS; ++i) {
+                Timer sentinel = slots[level][i];
+                if (sentinel.next != sentinel) {
+                    // The first tick of the slot, in the current span of the level (or the next
+                    // one, if it is already behind).
+                    long tick = (current & ~(span - 1)) | ((long) i << shift);
+                    if (tick < current) {
+                        tick += span;
+                    }
+                    next = Math.min(next, tick);
+                }
+            }
+        }
+        long nanos = (next * 1_000_000 + origin) - System.nanoTime();
+        return Math.max(0, nanos);
+    }
+
+    /**
+     * Get the number of scheduled timers.
+     *
+     * @return The number of scheduled timers.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Move down all the timers of a slot, as the current tick reached it.
+     *
+     * @param sentinel The sentinel of the slot.
+     */
+    private void cascade(Timer sentinel) {
+        while (sentinel.next != sentinel) {
+            Timer timer = sentinel.next;
+            timer.unlink();
+            place(timer);
+        }
+    }
+
+    /**
+     * Link a timer in the slot matching its deadline: in the level of the highest
+     * digit by which its deadline differs from the current tick. A deadline
+     * already reached is put in the slot of the current tick.
+     *
+     * @param timer The timer to place.
+     */
+    private void place(Timer timer) {
+        long deadline = Math.max(timer.deadline, current);
+        long differing = deadline ^ current;
+        int level = differing == 0 ? 0
+                : Math.min(LEVELS - 1, (63 - Long.numberOfLeadingZeros(differing)) / LEVEL_BITS);
+        timer.linkBefore(slots[level][digit(deadline, level)]);
+    }
+
+    /**
+     * Get the slot index of a tick in a given level.
+     *
+     * @param tick  The tick.
+     * @param level The level.
+     * @return The slot index.
+     */
+    private static int digit(long tick, int level) {
+        return (int) (tick >>> (level * LEVEL_BITS)) & (SLOTS - 1);
+    }
+
+    /**
+     * A timer of the wheel, linked in the list of its slot while scheduled. Meant
+     * to be extended by the objects to schedule, so that scheduling allocates
+     * nothing.
+     */
+    static class Timer {
+        private Timer prev = this;
+        private Timer next = this;
+        private long deadline = 0;
+
+        /**
+         * Check whether the timer is scheduled, i.e. linked in a slot.
+         *
+         * @return Whether the timer is scheduled.
+         */
+        private boolean isScheduled() {
+            return next != this;
+        }
+
+        /**
+         * Remove the timer from the list of its slot.
+         */
+        private void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = this;
+            next = this;
+        }
+
+        /**
+         * Add the timer at the end of a list, given its sentinel.
+         *
+         * @param sentinel The sentinel of the list.
+         */
+        private void linkBefore(Timer sentinel) {
+            prev = sentinel.prev;
+            next = sentinel;
+            sentinel.prev.next = this;
+            sentinel.prev = this;
+        }
+    }
+}
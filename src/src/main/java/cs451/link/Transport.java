@@ -0,0 +1,56 @@
+package cs451.link;
+
+import cs451.listener.HListener;
+import cs451.message.Packet;
+
+/**
+ * Defines the lowest layer of the link stack, i.e. what the stubborn link can
+ * see: a transport sends packets to distant hosts with the fair-loss, finite
+ * duplication and no creation properties, and hands the received packets to the
+ * listeners given to its provider (see TransportProvider).
+ */
+public interface Transport {
+
+    /**
+     * Send a packet to a distant host. The last hop of the packet is set to the
+     * local host. The caller keeps its own reference to the frame of the packet,
+     * if any.
+     *
+     * @param packet The packet to be sent.
+     * @param hostId The ID of the recipient.
+     */
+    void send(Packet packet, int hostId);
+
+    /**
+     * Check whether the transport can send a packet to several hosts at once.
+     *
+     * @return Whether multicast is enabled.
+     */
+    default boolean isMulticast() {
+        return false;
+    }
+
+    /**
+     * Send a multicast packet to all the destinations of its table at once. The
+     * caller keeps its own reference to the frame of the packet. By default, the
+     * packet is sent to each destination in turn (each one finds its own packet
+     * number in the table), so that isMulticast is only an optimisation.
+     *
+     * @param packet The multicast packet to be sent.
+     */
+    default void multicast(Packet packet) {
+        for (int hostId : packet.getDestinationIds()) {
+            send(packet, hostId);
+        }
+    }
+
+    /**
+     * Set the filter called on the header of each received datagram, before it is
+     * deserialized: the datagram is dropped if the filter rejects it. By default,
+     * the filter is ignored and every packet is delivered.
+     *
+     * @param filter The filter of the received packets.
+     */
+    default void setHeaderFilter(HListener filter) {
+    }
+}
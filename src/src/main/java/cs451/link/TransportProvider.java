@@ -0,0 +1,63 @@
+package cs451.link;
+
+import java.util.List;
+import java.util.ServiceLoader;
+
+import cs451.listener.PListener;
+import cs451.parser.Host;
+
+/**
+ * Creates the transport used under the stubborn link. The provider is selected
+ * by name (see Link.TRANSPORT): either a built-in one, or one registered as a
+ * service (META-INF/services/cs451.link.TransportProvider), so that alternative
+ * transports can be benchmarked under the same link and broadcast layers.
+ */
+public interface TransportProvider {
+
+    /**
+     * The name of the default provider: the UDP fair-loss link.
+     */
+    public static final String DEFAULT = "udp";
+
+    /**
+     * Get the name of the provider, used to select it.
+     *
+     * @return The name of the provider.
+     */
+    String getName();
+
+    /**
+     * Create a transport.
+     *
+     * @param port     The port number to be used for communication purposes.
+     * @param hosts    The complete list of hosts of the network.
+     * @param decoder  The listener to call once a packet is received, before it is
+     *                 delivered (it should not do any time-consuming work).
+     * @param listener The listener to call once a packet is delivered.
+     * @param myId     The ID of the local host.
+     * @return The newly created transport.
+     */
+    Transport create(int port, List<Host> hosts, PListener decoder, PListener listener, int myId);
+
+    /**
+     * Find a provider by name, among the built-in providers and the ones
+     * registered as services.
+     *
+     * @param name The name of the provider.
+     * @return The provider with the given name.
+     * @throws IllegalArgumentException If no provider has the given name.
+     */
+    static TransportProvider byName(String name) {
+        for (TransportProvider provider : List.of(new UdpTransportProvider(), new LossyTransportProvider())) {
+            if (provider.getName().equals(name)) {
+                return provider;
+            }
+        }
+        for (TransportProvider provider : ServiceLoader.load(TransportProvider.class)) {
+            if (provider.getName().equals(name)) {
+                return provider;
+            }
+        }
+        throw new IllegalArgumentException("Unknown transport: " + name);
+    }
+}
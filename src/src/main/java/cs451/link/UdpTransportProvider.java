@@ -0,0 +1,23 @@
+package cs451.link;
+
+import java.util.List;
+
+import cs451.listener.PListener;
+import cs451.parser.Host;
+
+/**
+ * The default transport provider: the UDP fair-loss link, whose NIO, multicast
+ * and shared-memory options are set by the configuration (see Link).
+ */
+class UdpTransportProvider implements TransportProvider {
+
+    @Override
+    public String getName() {
+        return DEFAULT;
+    }
+
+    @Override
+    public Transport create(int port, List<Host> hosts, PListener decoder, PListener listener, int myId) {
+        return new FairLossLink(port, hosts, decoder, listener, myId);
+    }
+}
@@ -3,10 +3,16 @@ package cs451.link;
 import cs451.message.Packet;
 
 /**
- * Implements an abstraction above the simple message. It mainly gives
- * information about the timeout.
+ * Implements an abstraction above the simple packet, waiting to be acked. It is
+ * the timer of its retransmission, scheduled in the timer wheel of the
+ * stubborn link.
  */
-class WaitingPacket {
+class WaitingPacket extends TimerWheel.Timer {
+
+    /**
+     * The ID of the distant host.
+     */
+    private final int hostId;
 
     /**
      * The information about the distant host.
@@ -19,27 +25,43 @@ class WaitingPacket {
     private final Packet packet;
 
     /**
-     * The timestamp of the message at its creation, in milliseconds.
+     * Whether the packet was retransmitted, in which case its acks do not measure
+     * the RTT (Karn's rule).
+     */
+    private volatile boolean retransmitted = false;
+
+    /**
+     * The number of back-offs of the timeout of the host when the packet was last
+     * sent (see RttEstimator.backOff).
      */
-    private final long timestamp;
+    private volatile long sentAt = 0;
 
     /**
-     * The host's timeout at he creation of this packet.
+     * Whether the packet was deemed lost by the acks of the following packets, and
+     * handed over to be retransmitted straight away (only used with the lock of
+     * the stubborn packets of its host).
      */
-    private final long timeout;
+    private boolean fastRetransmitted = false;
 
     /**
-     * Create a "waiting" packet, giving information about when to resend the
-     * message if it was not yet acked.
+     * Whether the next expiry of the timer of the packet is its fast
+     * retransmission (only used with the lock of the stubborn packets of its
+     * host).
+     */
+    private boolean fastRetransmitDue = false;
+
+    /**
+     * Create a "waiting" packet, to be resent to the distant host until it is
+     * acked.
      *
-     * @param message The underlying message.
-     * @param host    The information about the distant host.
+     * @param packet The underlying packet.
+     * @param hostId The ID of the distant host.
+     * @param host   The information about the distant host.
      */
-    public WaitingPacket(Packet packet, HostInfo host) {
+    public WaitingPacket(Packet packet, int hostId, HostInfo host) {
         this.packet = packet;
+        this.hostId = hostId;
         this.host = host;
-        this.timeout = host.getTimeout();
-        timestamp = System.currentTimeMillis();
     }
 
     /**
@@ -52,19 +74,87 @@ class WaitingPacket {
     }
 
     /**
-     * Check if the message has timed out, if yes, execute the given function and
-     * adapt the timeout of the host.
+     * Check whether the packet was retransmitted.
+     *
+     * @return Whether the packet was retransmitted at least once.
+     */
+    public boolean isRetransmitted() {
+        return retransmitted;
+    }
+
+    /**
+     * Mark the packet as retransmitted.
+     *
+     * @param backOffs The number of back-offs of the timeout of the host when the
+     *                 packet is sent again.
+     */
+    public void markRetransmitted(long backOffs) {
+        retransmitted = true;
+        sentAt = backOffs;
+    }
+
+    /**
+     * Record the number of back-offs of the timeout of the host when the packet is
+     * first sent.
+     *
+     * @param backOffs The number of back-offs of the timeout of the host.
+     */
+    public void markSent(long backOffs) {
+        sentAt = backOffs;
+    }
+
+    /**
+     * Mark the packet for a fast retransmission, unless it was already fast
+     * retransmitted.
      *
-     * @param toExecute Function to run if the message has timed out (should trigger
-     *                  a resending).
-     * @return The same or a new WaitingPacket.
+     * @return Whether the packet must be retransmitted straight away.
      */
-    public WaitingPacket resendIfTimedOut(Runnable toExecute) {
-        if (System.currentTimeMillis() - timestamp < timeout) {
-            return this;
+    public boolean markFastRetransmit() {
+        if (fastRetransmitted) {
+            return false;
         }
-        host.exponentialBackOff();
-        toExecute.run();
-        return new WaitingPacket(packet, host);
+        fastRetransmitted = true;
+        fastRetransmitDue = true;
+        return true;
+    }
+
+    /**
+     * Check whether the expiry of the timer of the packet is its fast
+     * retransmission, and clear it.
+     *
+     * @return Whether the packet is fast retransmitted.
+     */
+    public boolean takeFastRetransmit() {
+        boolean due = fastRetransmitDue;
+        fastRetransmitDue = false;
+        return due;
+    }
+
+    /**
+     * Get the number of back-offs of the timeout of the host when the packet was
+     * last sent.
+     *
+     * @return The number of back-offs.
+     */
+    public long getSentAt() {
+        return sentAt;
+    }
+
+    /**
+     * Get the ID of the distant host.
+     *
+     * @return The ID of the host the packet is sent to.
+     */
+    public int getHostId() {
+        return hostId;
+    }
+
+    /**
+     * Get the information about the distant host.
+     *
+     * @return The information about the host the packet is sent to.
+     */
+    public HostInfo getHost() {
+        return host;
     }
 }
@@ -0,0 +1,20 @@
+package cs451.listener;
+
+import cs451.message.PacketHeader;
+
+/**
+ * Functional interface serving the general purpose of filtering received
+ * packets on their header, before they are deserialized.
+ */
+@FunctionalInterface
+public interface HListener {
+
+    /**
+     * Check whether the packet of the given header should be deserialized and
+     * delivered, or dropped.
+     *
+     * @param header The header of the received packet.
+     * @return Whether the packet is accepted.
+     */
+    boolean apply(PacketHeader header);
+}
@@ -0,0 +1,18 @@
+package cs451.listener;
+
+/**
+ * Functional interface serving the general purpose of delivering runs of
+ * consecutive messages, without creating each message.
+ */
+@FunctionalInterface
+public interface RListener {
+
+    /**
+     * Deliver, or apply the run of messages to the given function.
+     *
+     * @param originId The origin ID of the messages.
+     * @param firstId  The message ID of the first message of the run.
+     * @param count    The number of messages of the run.
+     */
+    void apply(int originId, long firstId, int count);
+}
@@ -0,0 +1,18 @@
+package cs451.listener;
+
+import cs451.message.MessageView;
+
+/**
+ * Functional interface serving the general purpose of delivering messages
+ * without creating them, through a view only valid during the call.
+ */
+@FunctionalInterface
+public interface VListener {
+
+    /**
+     * Deliver, or apply the viewed message to the given function.
+     *
+     * @param view The view of the message.
+     */
+    void apply(MessageView view);
+}
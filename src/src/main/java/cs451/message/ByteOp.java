@@ -1,5 +1,7 @@
 package cs451.message;
 
+import java.nio.ByteBuffer;
+
 /**
  * Class implementing some byte operations (done for serialization purposes at
  * the packet level).
@@ -40,4 +42,114 @@ class ByteOp {
         }
         return ret;
     }
+
+    /**
+     * Get the number of bytes taken by a non-negative integer once encoded as a
+     * varint (7 bits per byte, least significant bits first).
+     *
+     * @param value The integer to serialize (seen as unsigned).
+     * @return The number of bytes of the varint, between 1 and 10.
+     */
+    public static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size += 1;
+        }
+        return size;
+    }
+
+    /**
+     * Transform a non-negative integer into a varint and save it at the right
+     * offset in the given array. Small values take a single byte.
+     *
+     * @param value  The integer to serialize into bytes (seen as unsigned).
+     * @param array  The array in which to save the serialization.
+     * @param offset The offset, or index, at which to start saving the bytes.
+     * @return The index following the varint.
+     */
+    public static int longToVarLong(long value, byte[] array, int offset) {
+        while ((value & ~0x7FL) != 0) {
+            array[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        array[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Write a non-negative integer as a varint in the given buffer, at its
+     * position.
+     *
+     * @param value  The integer to serialize into bytes (seen as unsigned).
+     * @param buffer The buffer in which to write the varint.
+     */
+    public static void putVarLong(long value, ByteBuffer buffer) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Transform a varint into an integer, given an array of bytes and an offset.
+     * The size of the varint is given back by varLongSize.
+     *
+     * @param array  The bytes from which to extract the integer.
+     * @param offset The offset, or index, at which to start extracting the bytes.
+     * @return The deserialized integer.
+     */
+    public static long varLongToLong(byte[] array, int offset) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = array[offset++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Read a varint at an absolute index of the given buffer, without moving its
+     * position. The size of the varint is given back by varLongSize.
+     *
+     * @param buffer The buffer from which to extract the integer.
+     * @param index  The index at which to start extracting the bytes.
+     * @return The deserialized integer.
+     */
+    public static long getVarLong(ByteBuffer buffer, int index) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(index++);
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Map a signed integer to a non-negative one (zigzag encoding), so that small
+     * negative values also take a single byte once encoded as a varint.
+     *
+     * @param value The signed integer.
+     * @return The zigzag-encoded integer.
+     */
+    public static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Revert the zigzag encoding of an integer.
+     *
+     * @param value The zigzag-encoded integer.
+     * @return The signed integer.
+     */
+    public static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
 }
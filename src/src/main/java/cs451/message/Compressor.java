@@ -0,0 +1,235 @@
+package cs451.message;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Compression of the bodies of the packets (raw deflate), used by the sending
+ * thread of the fair-loss link: the deflater and its output buffer are reused
+ * for all the packets.
+ *
+ * In adaptive mode, a body is only compressed while compression pays off, i.e.
+ * while the time spent compressing a byte is less than the time saved sending
+ * it: given the measured ratio r and the link bandwidth B, compressing must cost
+ * less than (1 - r) / B per byte. The cost is measured in CPU time of the
+ * sending thread (if supported), so that the time the thread is descheduled is
+ * not counted. While compression does not pay off, a body is compressed once in
+ * a while anyway (a probe), to follow the traffic.
+ */
+public class Compressor {
+
+    /**
+     * The minimum size of a body worth compressing.
+     */
+    private static final int MIN_SIZE = 1 << 8;
+
+    /**
+     * The number of bodies sent uncompressed between two probes, while compression
+     * does not pay off.
+     */
+    private static final int PROBE_INTERVAL = 1 << 6;
+
+    /**
+     * The weight of the last measure in the moving averages.
+     */
+    private static final double ALPHA = 1.0 / 8;
+
+    /**
+     * The bean giving the CPU time of the sending thread.
+     */
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * The deflater, reused for all the bodies.
+     */
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+
+    /**
+     * The buffer in which bodies are compressed.
+     */
+    private final byte[] output = new byte[Packet.MAX_PAYLOAD_SIZE];
+
+    /**
+     * Whether compression is adaptive, or used for every body it shrinks.
+     */
+    private final boolean adaptive;
+
+    /**
+     * The bandwidth of the link, in bytes per second.
+     */
+    private final double bandwidth;
+
+    /**
+     * Whether the CPU time of the sending thread can be measured (otherwise, the
+     * elapsed time is used).
+     */
+    private final boolean cpuTime;
+
+    /**
+     * Whether compression currently pays off.
+     */
+    private volatile boolean enabled;
+
+    /**
+     * The moving average of the compression ratio (compressed size over original
+     * size), or a negative value before the first measure.
+     */
+    private double ratio = -1;
+
+    /**
+     * The moving average of the time spent compressing a byte, in nanoseconds.
+     */
+    private double nanosPerByte = 0;
+
+    /**
+     * The number of bodies to send uncompressed before the next probe.
+     */
+    private int untilProbe = 0;
+
+    // Compression statistics.
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong probes = new AtomicLong();
+
+    /**
+     * Create a compressor.
+     *
+     * @param adaptive  Whether compression is adaptive.
+     * @param bandwidth The bandwidth of the link, in bytes per second (only used in
+     *                  adaptive mode).
+     */
+    public Compressor(boolean adaptive, long bandwidth) {
+        this.adaptive = adaptive;
+        this.bandwidth = bandwidth;
+        this.enabled = !adaptive;
+        this.cpuTime = adaptive && THREADS.isCurrentThreadCpuTimeSupported();
+    }
+
+    /**
+     * Get the current time used to measure the cost of compression.
+     *
+     * @return The CPU time of the current thread if supported, or the elapsed
+     *         time, in nanoseconds.
+     */
+    private long now() {
+        return cpuTime ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Compress a body in the output buffer, if compression pays off and actually
+     * shrinks it.
+     *
+     * @param body   The array containing the body.
+     * @param offset The index of the body in the array.
+     * @param length The number of bytes of the body.
+     * @return The number of bytes of the compressed body in the output buffer, or
+     *         -1 if the body must be sent uncompressed.
+     */
+    int compress(byte[] body, int offset, int length) {
+        if (length < MIN_SIZE) {
+            return -1;
+        }
+        if (!enabled) {
+            if (untilProbe > 0) {
+                untilProbe -= 1;
+                return -1;
+            }
+            untilProbe = PROBE_INTERVAL;
+            probes.incrementAndGet();
+        }
+
+        long start = adaptive ? now() : 0;
+        deflater.reset();
+        deflater.setInput(body, offset, length);
+        deflater.finish();
+        int size = deflater.deflate(output, 0, output.length);
+        boolean shrunk = deflater.finished() && size + ByteOp.varLongSize(length) < length;
+        if (adaptive) {
+            measure(shrunk ? (double) size / length : 1, (double) (now() - start) / length);
+        }
+        if (!shrunk) {
+            return -1;
+        }
+        compressed.incrementAndGet();
+        bytesIn.addAndGet(length);
+        bytesOut.addAndGet(size);
+        return size;
+    }
+
+    /**
+     * Add a measure to the moving averages (the first one replaces them), and
+     * decide whether compression pays off.
+     *
+     * @param lastRatio        The compression ratio of the last body.
+     * @param lastNanosPerByte The time spent compressing each byte of the last
+     *                         body, in nanoseconds.
+     */
+    private void measure(double lastRatio, double lastNanosPerByte) {
+        if (ratio < 0) {
+            ratio = lastRatio;
+            nanosPerByte = lastNanosPerByte;
+        } else {
+            ratio += ALPHA * (lastRatio - ratio);
+            nanosPerByte += ALPHA * (lastNanosPerByte - nanosPerByte);
+        }
+        enabled = nanosPerByte < (1 - ratio) * 1e9 / bandwidth;
+    }
+
+    /**
+     * Get the buffer in which the last body was compressed.
+     *
+     * @return The output buffer.
+     */
+    byte[] getOutput() {
+        return output;
+    }
+
+    /**
+     * Check whether compression currently pays off.
+     *
+     * @return Whether bodies are compressed (apart from probes).
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Get the number of bodies sent compressed.
+     *
+     * @return The number of compressed bodies.
+     */
+    public long getCompressed() {
+        return compressed.get();
+    }
+
+    /**
+     * Get the number of bytes of the bodies sent compressed, before compression.
+     *
+     * @return The number of bytes compressed.
+     */
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    /**
+     * Get the number of bytes of the bodies sent compressed, after compression.
+     *
+     * @return The number of bytes produced.
+     */
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /**
+     * Get the number of bodies compressed while compression did not pay off, to
+     * measure it again.
+     *
+     * @return The number of probes.
+     */
+    public long getProbes() {
+        return probes.get();
+    }
+}
@@ -0,0 +1,122 @@
+package cs451.message;
+
+import java.util.Arrays;
+
+/**
+ * Delta encoding of the dependencies of the messages of a packet. The
+ * dependencies of a message are written as (zigzag) varints, relative to the
+ * ones of the previous message of the same origin in the same packet (if it has
+ * as many dependencies), or to 0. As the dependencies of an origin only grow,
+ * and slowly, most of them take a single byte.
+ *
+ * The encoder and the decoder of a packet each use their own codec, and see
+ * the messages in the same order.
+ */
+class DependencyCodec {
+
+    /**
+     * The maximum number of bytes taken by a dependency once encoded.
+     */
+    static final int MAX_DEPENDENCY_SIZE = 10;
+
+    /**
+     * The dependencies of the previous message of each origin (indexed by origin
+     * ID), or null if there is none. Grown as origins are seen.
+     */
+    private long[][] previous = new long[1 << 4][];
+
+    /**
+     * Get the base of the dependencies of a message, i.e. the dependencies of the
+     * previous message of the same origin, if it has as many of them.
+     *
+     * @param originId       The origin ID of the message.
+     * @param nbDependencies The number of dependencies of the message.
+     * @return The base of the dependencies, or null if they are relative to 0.
+     */
+    private long[] baseOf(int originId, int nbDependencies) {
+        if (originId >= previous.length) {
+            previous = Arrays.copyOf(previous, Math.max(originId + 1, previous.length * 2));
+        }
+        long[] base = previous[originId];
+        return base != null && base.length == nbDependencies ? base : null;
+    }
+
+    /**
+     * Get the number of bytes the dependencies of a message would take, without
+     * encoding them.
+     *
+     * @param m The message.
+     * @return The size of the encoded dependencies.
+     */
+    int sizeOf(Message m) {
+        long[] base = baseOf(m.getOriginId(), m.getNbDependencies());
+        int size = 0;
+        for (int j = 0; j < m.getNbDependencies(); ++j) {
+            long e = m.getDependency(j);
+            size += ByteOp.varLongSize(ByteOp.zigZag(base == null ? e : e - base[j]));
+        }
+        return size;
+    }
+
+    /**
+     * Encode the dependencies of a message in the given array, and remember them
+     * as the base of the next message of the same origin.
+     *
+     * @param m       The message.
+     * @param data    The array in which to encode the dependencies.
+     * @param pointer The index at which to start encoding.
+     * @return The index following the encoded dependencies.
+     */
+    int encode(Message m, byte[] data, int pointer) {
+        long[] base = baseOf(m.getOriginId(), m.getNbDependencies());
+        long[] current = base != null ? base : new long[m.getNbDependencies()];
+        for (int j = 0; j < current.length; ++j) {
+            long e = m.getDependency(j);
+            pointer = ByteOp.longToVarLong(ByteOp.zigZag(base == null ? e : e - base[j]), data, pointer);
+            current[j] = e;
+        }
+        previous[m.getOriginId()] = current;
+        return pointer;
+    }
+
+    /**
+     * Remember the dependencies of a message as the base of the next message of
+     * the same origin, as encode does, without encoding them.
+     *
+     * @param m The message.
+     */
+    void remember(Message m) {
+        long[] base = baseOf(m.getOriginId(), m.getNbDependencies());
+        long[] current = base != null ? base : new long[m.getNbDependencies()];
+        for (int j = 0; j < current.length; ++j) {
+            current[j] = m.getDependency(j);
+        }
+        previous[m.getOriginId()] = current;
+    }
+
+    /**
+     * Decode the dependencies of a message from the given array, and remember
+     * them as the base of the next message of the same origin. The base is updated
+     * in place, so that decoding allocates nothing once each origin was seen.
+     *
+     * @param originId       The origin ID of the message.
+     * @param nbDependencies The number of dependencies of the message.
+     * @param data           The array from which to decode the dependencies.
+     * @param pointer        The index of the first dependency.
+     * @param dependencies   The array in which the dependencies are decoded.
+     * @return The index following the encoded dependencies.
+     */
+    int decode(int originId, int nbDependencies, byte[] data, int pointer, long[] dependencies) {
+        long[] base = baseOf(originId, nbDependencies);
+        long[] current = base != null ? base : new long[nbDependencies];
+        for (int j = 0; j < nbDependencies; ++j) {
+            long zigZag = ByteOp.varLongToLong(data, pointer);
+            pointer += ByteOp.varLongSize(zigZag);
+            long delta = ByteOp.unZigZag(zigZag);
+            current[j] = base == null ? delta : base[j] + delta;
+            dependencies[j] = current[j];
+        }
+        previous[originId] = current;
+        return pointer;
+    }
+}
@@ -0,0 +1,200 @@
+package cs451.message;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A block of encoded messages, shared by the packets sent to several hosts. The
+ * messages are encoded only once, when they are added to the frame; each
+ * destination then only needs its own packet header.
+ *
+ * Once sealed, a frame is immutable and reference-counted: each destination
+ * (and each queued transmission) holds a reference, and the underlying buffer is
+ * given back to a pool once the last reference is released.
+ */
+public class Frame {
+
+    /**
+     * The capacity of a frame: the contents of a packet, leaving room for the
+     * destination table of a multicast packet.
+     */
+    private static final int CAPACITY = Packet.MAX_PAYLOAD_SIZE - Packet.MAX_HEADER_SIZE
+            - Packet.MAX_DESTINATIONS_SIZE;
+
+    /**
+     * The maximum number of free buffers kept in the pool.
+     */
+    private static final int POOL_SIZE = 1 << 6;
+
+    /**
+     * The pool of free buffers.
+     */
+    private static final BlockingQueue<byte[]> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /**
+     * The encoded messages.
+     */
+    private byte[] body;
+
+    /**
+     * Whether the body comes from the pool, and should be given back to it.
+     */
+    private boolean pooled = true;
+
+    /**
+     * The writer encoding the messages in the body, while the frame is open.
+     */
+    private final MessageWriter writer;
+
+    /**
+     * The number of references to this frame. A frame is open (messages can be
+     * added to it) until it is sealed.
+     */
+    private final AtomicInteger references = new AtomicInteger(0);
+
+    /**
+     * Whether the frame is sealed.
+     */
+    private boolean sealed = false;
+
+    /**
+     * The compressed body, once compressed for a first transmission, so that the
+     * other destinations reuse it (sending thread only), or null.
+     */
+    private byte[] compressed = null;
+
+    private Frame(byte[] body) {
+        this.body = body;
+        this.writer = new MessageWriter(body, 0);
+    }
+
+    /**
+     * Create a new, empty and open frame, reusing a buffer of the pool if
+     * possible.
+     *
+     * @return The newly created frame.
+     */
+    public static Frame open() {
+        byte[] body = pool.poll();
+        return new Frame(body == null ? new byte[CAPACITY] : body);
+    }
+
+    /**
+     * Check whether a message still fits in the frame. A message continuing the
+     * run of the previous one takes (almost) no room, and a fragment only fits
+     * beside fragments of the same message.
+     *
+     * @param message The message to check.
+     * @return Whether the message can be added to the frame.
+     */
+    public boolean canFit(Message message) {
+        return writer.acceptsFragment(message) && writer.getLength() + writer.sizeOf(message) <= CAPACITY;
+    }
+
+    /**
+     * Encode a message at the end of the frame.
+     *
+     * @param message The message to add.
+     */
+    public void add(Message message) {
+        if (sealed) {
+            throw new IllegalStateException("Cannot add a message to a sealed frame.");
+        }
+        writer.write(message);
+    }
+
+    /**
+     * Seal the frame, i.e. make it immutable, and give it its initial references.
+     * If the frame is mostly empty, its contents are moved to a smaller buffer, so
+     * that the large one goes back to the pool right away.
+     *
+     * @param nbReferences The initial number of references to the frame.
+     */
+    public void seal(int nbReferences) {
+        if (writer.getLength() < CAPACITY / 2) {
+            byte[] compact = Arrays.copyOf(body, writer.getLength());
+            pool.offer(body);
+            body = compact;
+            pooled = false;
+        }
+        sealed = true;
+        references.set(nbReferences);
+    }
+
+    /**
+     * Add a reference to the frame.
+     */
+    public void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * Release a reference to the frame. The buffer goes back to the pool once the
+     * last reference is released.
+     */
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0 && pooled) {
+            pool.offer(body);
+            body = null;
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Frame released too many times.");
+        }
+    }
+
+    /**
+     * Get the compressed body of the sealed frame, compressing it on the first
+     * call that the compressor accepts (sending thread only).
+     *
+     * @param compressor The compressor of the sending thread.
+     * @return The compressed body (of its exact size), or null if the body must be
+     *         sent uncompressed.
+     */
+    byte[] compress(Compressor compressor) {
+        if (compressed == null) {
+            int size = compressor.compress(body, 0, getLength());
+            if (size >= 0) {
+                compressed = Arrays.copyOf(compressor.getOutput(), size);
+            }
+        }
+        return compressed;
+    }
+
+    /**
+     * Check whether the frame contains no message.
+     *
+     * @return Whether the frame is empty.
+     */
+    public boolean isEmpty() {
+        return writer.getNbMessages() == 0;
+    }
+
+    /**
+     * Get the number of messages in the frame.
+     *
+     * @return The number of messages in the frame.
+     */
+    int getNbMessages() {
+        return writer.getNbMessages();
+    }
+
+    /**
+     * Get the encoded messages (only the first getLength() bytes are used).
+     *
+     * @return The body of the frame.
+     */
+    byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Get the number of bytes used in the body.
+     *
+     * @return The length of the body.
+     */
+    int getLength() {
+        return writer.getLength();
+    }
+}
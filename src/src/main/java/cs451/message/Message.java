@@ -1,11 +1,15 @@
 package cs451.message;
 
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 /**
  * Abstraction for a network message.
+ *
+ * A message may carry an application payload, kept as a slice of an existing
+ * array: the payload is never copied when a message is derived from another
+ * one. A message whose payload is too large for a single packet is sent as
+ * several fragments, i.e. messages with the same IDs, each carrying a slice of
+ * the payload, and reassembled by the receiving link.
  */
 public class Message {
 
@@ -13,34 +17,86 @@ public class Message {
      * The last hop of the message, i.e. the ID of the host that sent it (this is
      * not necessarily the same as the origin ID).
      */
-    private final byte lastHop;
+    private final int lastHop;
 
     /**
      * The origin ID of the message, i.e. where it originally comes from.
      */
-    private final byte originId;
+    private final int originId;
 
     /**
      * The message ID of the message, i.e. the sequence number used by the host
-     * where it originally comes from.
+     * where it originally comes from (64 bits, so that it never wraps around).
+     */
+    private final long messageId;
+
+    /**
+     * The dependencies of the message, shared by all the messages without any.
+     */
+    private static final long[] NO_DEPENDENCIES = new long[0];
+
+    /**
+     * The causality dependencies of the message (never modified once the message
+     * is created).
+     */
+    private final long[] dependencies;
+
+    /**
+     * The payload of the messages without any.
+     */
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    /**
+     * The array containing the payload of the message (shared, never modified).
+     */
+    private final byte[] payload;
+
+    /**
+     * The index of the payload in its array.
+     */
+    private final int payloadOffset;
+
+    /**
+     * The number of bytes of the payload (of this fragment only, for a fragment).
+     */
+    private final int payloadLength;
+
+    /**
+     * The index of the payload of this fragment in the complete payload (0 for a
+     * complete message).
+     */
+    private final int fragmentOffset;
+
+    /**
+     * The number of bytes of the complete payload (the same as payloadLength for a
+     * complete message).
      */
-    private final int messageId;
+    private final int totalLength;
 
-    private final List<Integer> dependencies;
+    private Message(int originId, long messageId, int lastHop) {
+        this(originId, messageId, lastHop, NO_DEPENDENCIES);
+    }
 
-    private Message(int originId, int messageId, int lastHop) {
-        this((byte) originId, messageId, (byte) lastHop, new LinkedList<>());
+    private Message(Message message, long[] dependencies) {
+        this(message.originId, message.messageId, message.lastHop, dependencies, message.payload,
+                message.payloadOffset, message.payloadLength, message.fragmentOffset, message.totalLength);
     }
 
-    private Message(Message message, List<Integer> dependencies) {
-        this(message.originId, message.messageId, message.lastHop, dependencies);
+    private Message(int originId, long messageId, int lastHop, long[] dependencies) {
+        this(originId, messageId, lastHop, dependencies, NO_PAYLOAD, 0, 0, 0, 0);
     }
 
-    private Message(byte originId, int messageId, byte lastHop, List<Integer> dependencies) {
+    private Message(int originId, long messageId, int lastHop, long[] dependencies, byte[] payload,
+            int payloadOffset, int payloadLength, int fragmentOffset, int totalLength) {
         this.originId = originId;
         this.messageId = messageId;
         this.lastHop = lastHop;
-        this.dependencies = Collections.unmodifiableList(new LinkedList<>(dependencies));
+        this.dependencies = dependencies.length == 0 ? NO_DEPENDENCIES : dependencies;
+        this.payload = payloadLength == 0 ? NO_PAYLOAD : payload;
+        this.payloadOffset = payloadLength == 0 ? 0 : payloadOffset;
+        this.payloadLength = payloadLength;
+        this.fragmentOffset = fragmentOffset;
+        this.totalLength = totalLength;
     }
 
     /**
@@ -50,7 +106,7 @@ public class Message {
      * @param messageId The message ID of the message.
      * @return The newly created message.
      */
-    public static Message createMessage(int originId, int messageId) {
+    public static Message createMessage(int originId, long messageId) {
         return new Message(originId, messageId, originId);
     }
 
@@ -62,7 +118,7 @@ public class Message {
      * @param lastHop   The last hop of the message.
      * @return The newly created message.
      */
-    public static Message createMessage(int originId, int messageId, int lastHop) {
+    public static Message createMessage(int originId, long messageId, int lastHop) {
         return new Message(originId, messageId, lastHop);
     }
 
@@ -72,21 +128,100 @@ public class Message {
      * @param originId     The origin ID of the message.
      * @param messageId    The message ID of the message.
      * @param lastHop      The last hop of the message.
-     * @param dependencies The list of causality dependencies.
+     * @param dependencies The causality dependencies (not copied: the array must
+     *                     not be modified afterwards).
+     * @return The newly created message.
+     */
+    public static Message createMessage(int originId, long messageId, int lastHop, long[] dependencies) {
+        return new Message(originId, messageId, lastHop, dependencies);
+    }
+
+    /**
+     * Create a new message from scratch, with a payload.
+     *
+     * @param originId     The origin ID of the message.
+     * @param messageId    The message ID of the message.
+     * @param lastHop      The last hop of the message.
+     * @param dependencies The causality dependencies (not copied: the array must
+     *                     not be modified afterwards).
+     * @param payload      The array containing the payload (not copied: it must
+     *                     not be modified afterwards).
+     * @param offset       The index of the payload in the array.
+     * @param length       The number of bytes of the payload.
+     * @return The newly created message.
+     */
+    public static Message createMessage(int originId, long messageId, int lastHop, long[] dependencies,
+            byte[] payload, int offset, int length) {
+        return new Message(originId, messageId, lastHop, dependencies, payload, offset, length, 0, length);
+    }
+
+    /**
+     * Create a fragment of a message from scratch.
+     *
+     * @param originId       The origin ID of the message.
+     * @param messageId      The message ID of the message.
+     * @param lastHop        The last hop of the message.
+     * @param dependencies   The causality dependencies (not copied).
+     * @param payload        The payload of the fragment (the whole array, not
+     *                       copied).
+     * @param fragmentOffset The index of the fragment in the complete payload.
+     * @param totalLength    The number of bytes of the complete payload.
+     * @return The newly created fragment.
+     */
+    static Message createFragment(int originId, long messageId, int lastHop, long[] dependencies, byte[] payload,
+            int fragmentOffset, int totalLength) {
+        return new Message(originId, messageId, lastHop, dependencies, payload, 0, payload.length, fragmentOffset,
+                totalLength);
+    }
+
+    /**
+     * Create a fragment of a message, i.e. a message with the same IDs and
+     * dependencies, carrying a slice of its payload. Used by the StubbornLink
+     * layer.
+     *
+     * @param from   The index of the fragment in the payload of the message.
+     * @param length The number of bytes of the fragment.
+     * @return The newly created fragment (sharing the payload of the message).
+     */
+    public Message fragment(int from, int length) {
+        return new Message(originId, messageId, lastHop, dependencies, payload, payloadOffset + from, length,
+                fragmentOffset + from, totalLength);
+    }
+
+    /**
+     * Add a payload to this message.
+     *
+     * @param payload The array containing the payload (not copied: it must not be
+     *                modified afterwards).
+     * @param offset  The index of the payload in the array.
+     * @param length  The number of bytes of the payload.
+     * @return The newly created message.
+     */
+    public Message withPayload(byte[] payload, int offset, int length) {
+        return new Message(originId, messageId, lastHop, dependencies, payload, offset, length, 0, length);
+    }
+
+    /**
+     * Change the last hop of this message. Used by the PerfectLink layer, to hand
+     * up a message echoed by the host it was sent to.
+     *
+     * @param lastHop The new last hop of the message.
      * @return The newly created message.
      */
-    public static Message createMessage(int originId, int messageId, int lastHop, List<Integer> dependencies) {
-        return new Message((byte) originId, messageId, (byte) lastHop, dependencies);
+    public Message withLastHop(int lastHop) {
+        return new Message(originId, messageId, lastHop, dependencies, payload, payloadOffset, payloadLength,
+                fragmentOffset, totalLength);
     }
 
     /**
      * Add the list of causality/dependencies to this message. Used by the
      * LCausalBroadcast layer.
      * 
-     * @param dependencies The list of dependencies of this message.
+     * @param dependencies The dependencies of this message (not copied: the array
+     *                     must not be modified afterwards).
      * @return The newly created message.
      */
-    public Message addCausality(List<Integer> dependencies) {
+    public Message addCausality(long[] dependencies) {
         return new Message(this, dependencies);
     }
 
@@ -96,7 +231,7 @@ public class Message {
      * @return The origin ID of the message.
      */
     public int getOriginId() {
-        return (int) originId & 0xFF;
+        return originId;
     }
 
     /**
@@ -105,7 +240,7 @@ public class Message {
      *
      * @return The message ID of the message.
      */
-    public int getMessageId() {
+    public long getMessageId() {
         return messageId;
     }
 
@@ -116,27 +251,107 @@ public class Message {
      * @return The ID of the host that sent this message, the last hop.
      */
     public int getLastHop() {
-        return (int) lastHop & 0xFF;
+        return lastHop;
     }
 
     /**
-     * Get the list of dependencies of this message. Each element corresponds to a
-     * specific, external process according to the order found in the configuration
-     * file.
-     * 
-     * @return The list of dependencies of this message.
+     * Get the number of dependencies of this message.
+     *
+     * @return The number of dependencies of this message.
+     */
+    public int getNbDependencies() {
+        return dependencies.length;
+    }
+
+    /**
+     * Get a dependency of this message. Each element corresponds to a specific,
+     * external process according to the order found in the configuration file.
+     *
+     * @param i The index of the dependency.
+     * @return The dependency.
+     */
+    public long getDependency(int i) {
+        return dependencies[i];
+    }
+
+    /**
+     * Get the number of bytes of the payload of this message (of this fragment
+     * only, for a fragment).
+     *
+     * @return The length of the payload.
+     */
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * Get the payload of this message (of this fragment only, for a fragment), as
+     * a read-only view of the underlying array.
+     *
+     * @return The payload of the message.
+     */
+    public ByteBuffer getPayload() {
+        return ByteBuffer.wrap(payload, payloadOffset, payloadLength).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the array containing the payload, without copying it. It must not be
+     * modified.
+     *
+     * @return The array containing the payload, starting at getPayloadOffset.
      */
-    public List<Integer> getDependencies() {
-        return dependencies;
+    byte[] getPayloadArray() {
+        return payload;
+    }
+
+    /**
+     * Get the index of the payload in its array.
+     *
+     * @return The index of the payload.
+     */
+    int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    /**
+     * Check whether this message is a fragment of a message, i.e. only carries a
+     * part of its payload.
+     *
+     * @return Whether the message is a fragment.
+     */
+    public boolean isFragment() {
+        return payloadLength != totalLength;
+    }
+
+    /**
+     * Get the index of the payload of this fragment in the complete payload.
+     *
+     * @return The offset of the fragment (0 for a complete message).
+     */
+    public int getFragmentOffset() {
+        return fragmentOffset;
+    }
+
+    /**
+     * Get the number of bytes of the complete payload of the message.
+     *
+     * @return The total length of the payload.
+     */
+    public int getTotalLength() {
+        return totalLength;
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("Message" + " #" + messageId + " from " + originId + " | last hop " + lastHop + " | dep: ");
-        for (int e : dependencies) {
+        for (long e : dependencies) {
             sb.append(e).append(" ");
         }
+        if (totalLength > 0) {
+            sb.append("| payload ").append(fragmentOffset).append("+").append(payloadLength).append("/")
+                    .append(totalLength);
+        }
         return sb.toString();
     }
 }
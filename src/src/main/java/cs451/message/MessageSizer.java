@@ -0,0 +1,54 @@
+package cs451.message;
+
+/**
+ * Measures the contents of a packet as messages are added to it, exactly as
+ * they will be encoded (runs and delta-encoded dependencies included), so that
+ * a packet can be filled up to the room it has. Nothing is encoded: the
+ * messages are encoded once the packet is created (see Packet.createPacket).
+ */
+public class MessageSizer {
+
+    /**
+     * The writer measuring the messages.
+     */
+    private final MessageWriter writer = new MessageWriter();
+
+    /**
+     * Get the number of bytes that adding the given message would take.
+     *
+     * @param message The message.
+     * @return The number of bytes added by the message.
+     */
+    public int sizeOf(Message message) {
+        return writer.sizeOf(message);
+    }
+
+    /**
+     * Check whether a message may be added beside the previous ones: a fragment may
+     * only be added beside fragments of the same message.
+     *
+     * @param message The message.
+     * @return Whether the message may be added.
+     */
+    public boolean accepts(Message message) {
+        return writer.acceptsFragment(message);
+    }
+
+    /**
+     * Account for a message after the previous ones.
+     *
+     * @param message The message to add.
+     */
+    public void add(Message message) {
+        writer.measure(message);
+    }
+
+    /**
+     * Get the size of the encoded messages added so far.
+     *
+     * @return The number of bytes of the encoded messages.
+     */
+    public int getLength() {
+        return writer.getLength();
+    }
+}
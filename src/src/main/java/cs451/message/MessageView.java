@@ -0,0 +1,243 @@
+package cs451.message;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Flyweight view of a message of a received packet: its fields are read from
+ * the datagram as the packet is walked through, and the same view is reused for
+ * all the messages of the packet. A view is only valid during the call it is
+ * given to; a layer that has to keep the message must materialize it with
+ * toMessage. The payload of the message is a slice of the datagram itself, and
+ * is only copied by toMessage (or copyPayload).
+ */
+public class MessageView {
+
+    /**
+     * The last hop of the messages, i.e. the ID of the host that sent the packet.
+     */
+    private final int lastHop;
+
+    /**
+     * The origin ID of the current message.
+     */
+    private int originId;
+
+    /**
+     * The message ID of the current message.
+     */
+    private long messageId;
+
+    /**
+     * The number of dependencies of the current message.
+     */
+    private int nbDependencies;
+
+    /**
+     * The dependencies of the current message (only the first nbDependencies are
+     * used), grown as needed.
+     */
+    private long[] dependencies = new long[0];
+
+    /**
+     * The array containing the payload of the current message (the datagram).
+     */
+    private byte[] payload;
+
+    /**
+     * The index of the payload of the current message in its array.
+     */
+    private int payloadOffset;
+
+    /**
+     * The number of bytes of the payload of the current message.
+     */
+    private int payloadLength;
+
+    /**
+     * The index of the payload of the current fragment in the complete payload.
+     */
+    private int fragmentOffset;
+
+    /**
+     * The number of bytes of the complete payload of the current message.
+     */
+    private int totalLength;
+
+    /**
+     * Create a view of the messages of a packet.
+     *
+     * @param lastHop The last hop of the packet.
+     */
+    MessageView(int lastHop) {
+        this.lastHop = lastHop;
+    }
+
+    /**
+     * Get the array in which the dependencies of the next message are decoded.
+     *
+     * @param nbDependencies The number of dependencies of the next message.
+     * @return The array of dependencies, large enough.
+     */
+    long[] dependencyBuffer(int nbDependencies) {
+        if (dependencies.length < nbDependencies) {
+            dependencies = new long[nbDependencies];
+        }
+        return dependencies;
+    }
+
+    /**
+     * Move the view to the next message, whose dependencies were decoded in the
+     * dependency buffer.
+     *
+     * @param originId       The origin ID of the message.
+     * @param messageId      The message ID of the message.
+     * @param nbDependencies The number of dependencies of the message.
+     */
+    void set(int originId, long messageId, int nbDependencies) {
+        this.originId = originId;
+        this.messageId = messageId;
+        this.nbDependencies = nbDependencies;
+        this.payloadLength = 0;
+        this.fragmentOffset = 0;
+        this.totalLength = 0;
+    }
+
+    /**
+     * Set the payload of the current message, once moved to it.
+     *
+     * @param payload        The array containing the payload.
+     * @param payloadOffset  The index of the payload in the array.
+     * @param payloadLength  The number of bytes of the payload.
+     * @param fragmentOffset The index of the fragment in the complete payload.
+     * @param totalLength    The number of bytes of the complete payload.
+     */
+    void setPayload(byte[] payload, int payloadOffset, int payloadLength, int fragmentOffset, int totalLength) {
+        this.payload = payload;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+        this.fragmentOffset = fragmentOffset;
+        this.totalLength = totalLength;
+    }
+
+    /**
+     * Get the origin ID of the message, i.e. where it originally comes from.
+     *
+     * @return The origin ID of the message.
+     */
+    public int getOriginId() {
+        return originId;
+    }
+
+    /**
+     * Get the message ID of the message, i.e. the sequence number used by the host
+     * where it originally comes from.
+     *
+     * @return The message ID of the message.
+     */
+    public long getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * Get the last hop of the message, i.e. the ID of the host that sent it.
+     *
+     * @return The ID of the host that sent this message, the last hop.
+     */
+    public int getLastHop() {
+        return lastHop;
+    }
+
+    /**
+     * Get the number of dependencies of the message.
+     *
+     * @return The number of dependencies of the message.
+     */
+    public int getNbDependencies() {
+        return nbDependencies;
+    }
+
+    /**
+     * Get a dependency of the message.
+     *
+     * @param i The index of the dependency.
+     * @return The dependency.
+     */
+    public long getDependency(int i) {
+        return dependencies[i];
+    }
+
+    /**
+     * Get the number of bytes of the payload of the message (of this fragment
+     * only, for a fragment).
+     *
+     * @return The length of the payload.
+     */
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * Get the payload of the message, as a read-only view of the datagram (only
+     * valid during the call the view is given to).
+     *
+     * @return The payload of the message.
+     */
+    public ByteBuffer getPayload() {
+        return ByteBuffer.wrap(payload, payloadOffset, payloadLength).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Copy the payload of the message in the given array.
+     *
+     * @param destination The array in which to copy the payload.
+     * @param offset      The index at which to copy the payload.
+     */
+    public void copyPayload(byte[] destination, int offset) {
+        System.arraycopy(payload, payloadOffset, destination, offset, payloadLength);
+    }
+
+    /**
+     * Check whether the message is a fragment of a message, i.e. only carries a
+     * part of its payload.
+     *
+     * @return Whether the message is a fragment.
+     */
+    public boolean isFragment() {
+        return payloadLength != totalLength;
+    }
+
+    /**
+     * Get the index of the payload of this fragment in the complete payload.
+     *
+     * @return The offset of the fragment (0 for a complete message).
+     */
+    public int getFragmentOffset() {
+        return fragmentOffset;
+    }
+
+    /**
+     * Get the number of bytes of the complete payload of the message.
+     *
+     * @return The total length of the payload.
+     */
+    public int getTotalLength() {
+        return totalLength;
+    }
+
+    /**
+     * Create a heap message out of the view, that can be kept after the call. The
+     * payload is copied, as the datagram is reused once the packet is handled.
+     *
+     * @return The newly created message.
+     */
+    public Message toMessage() {
+        long[] copiedDependencies = Arrays.copyOf(dependencies, nbDependencies);
+        if (payloadLength == 0) {
+            return Message.createMessage(originId, messageId, lastHop, copiedDependencies);
+        }
+        byte[] copy = Arrays.copyOfRange(payload, payloadOffset, payloadOffset + payloadLength);
+        return Message.createFragment(originId, messageId, lastHop, copiedDependencies, copy, fragmentOffset,
+                totalLength);
+    }
+}
@@ -0,0 +1,318 @@
+package cs451.message;
+
+/**
+ * Encodes messages one after the other in a byte array, as found in the
+ * contents of a packet.
+ *
+ * Each entry starts with the origin ID and the message ID, as varints (small
+ * IDs take a single byte), followed by a tag. For a single message, the tag (a
+ * varint) holds the number of dependencies and the payload flags, and is
+ * followed by the dependencies themselves (see DependencyCodec), then by the
+ * payload if any: for a fragment, the length of the complete payload and the
+ * index of the fragment in it, then the length of the payload of the entry
+ * (all varints) and its bytes. Consecutive messages of the same origin without
+ * dependencies nor payload (as sent by a FIFO sender) are merged into a run:
+ * the tag is RUN_TAG, followed by the number of messages of the run (4 bytes).
+ * A run thus takes the same room whatever its length.
+ *
+ * The contents hold the fragments of at most one message, so that a packet
+ * either starts the reassembly of a message or continues one, never both (see
+ * acceptsFragment).
+ */
+class MessageWriter {
+
+    /**
+     * The tag of a run (the tag of a single message is always even).
+     */
+    static final int RUN_TAG = 1;
+
+    /**
+     * The flag of the tag of a message carrying a payload.
+     */
+    static final int PAYLOAD_FLAG = 1 << 1;
+
+    /**
+     * The flag of the tag of a message carrying a fragment of its payload.
+     */
+    static final int FRAGMENT_FLAG = 1 << 2;
+
+    /**
+     * The shift of the number of dependencies in the tag of a message.
+     */
+    static final int DEPENDENCIES_SHIFT = 3;
+
+    /**
+     * The number of bytes added to a single message to turn it into a run.
+     */
+    private static final int RUN_EXTENSION = Integer.BYTES;
+
+    /**
+     * The array in which the messages are encoded.
+     */
+    private final byte[] data;
+
+    /**
+     * The number of bytes used in the array.
+     */
+    private int length;
+
+    /**
+     * The number of messages written (a run counts as many messages).
+     */
+    private int nbMessages = 0;
+
+    /**
+     * The codec of the dependencies of the messages.
+     */
+    private final DependencyCodec codec = new DependencyCodec();
+
+    /**
+     * The index of the tag of the last entry, or -1 if it cannot be extended (no
+     * entry yet, or the last message has dependencies). The tag of an extensible
+     * entry always takes a single byte.
+     */
+    private int lastTag = -1;
+
+    /**
+     * Whether the last entry is already a run (only meaningful if it can be
+     * extended).
+     */
+    private boolean lastIsRun = false;
+
+    /**
+     * Whether the contents hold fragments, of the message given by fragmentOriginId
+     * and fragmentMessageId.
+     */
+    private boolean hasFragments = false;
+
+    /**
+     * The origin ID of the message whose fragments the contents hold.
+     */
+    private int fragmentOriginId;
+
+    /**
+     * The message ID of the message whose fragments the contents hold.
+     */
+    private long fragmentMessageId;
+
+    /**
+     * The origin ID of the last message written.
+     */
+    private int lastOriginId;
+
+    /**
+     * The message ID of the last message written.
+     */
+    private long lastMessageId;
+
+    /**
+     * Create a writer encoding messages in the given array.
+     *
+     * @param data   The array in which to encode the messages.
+     * @param offset The index at which to start encoding.
+     */
+    MessageWriter(byte[] data, int offset) {
+        this.data = data;
+        this.length = offset;
+    }
+
+    /**
+     * Create a writer only measuring the messages, without encoding them (see
+     * measure).
+     */
+    MessageWriter() {
+        this(null, 0);
+    }
+
+    /**
+     * Check whether a message extends the last entry, i.e. follows its last
+     * message in the same run.
+     *
+     * @param m The message.
+     * @return Whether the message extends the last entry.
+     */
+    private boolean extendsLastEntry(Message m) {
+        return lastTag >= 0 && m.getNbDependencies() == 0 && m.getTotalLength() == 0
+                && m.getOriginId() == lastOriginId && m.getMessageId() == lastMessageId + 1;
+    }
+
+    /**
+     * Check whether a message may be added to the contents, as far as fragments are
+     * concerned: it is not a fragment, or the contents hold no fragment yet, or
+     * only fragments of the same message.
+     *
+     * @param m The message.
+     * @return Whether the message may be added.
+     */
+    boolean acceptsFragment(Message m) {
+        return !m.isFragment() || !hasFragments
+                || (m.getOriginId() == fragmentOriginId && m.getMessageId() == fragmentMessageId);
+    }
+
+    /**
+     * Remember the message of a fragment added to the contents.
+     *
+     * @param m The message added.
+     */
+    private void recordFragment(Message m) {
+        if (m.isFragment()) {
+            hasFragments = true;
+            fragmentOriginId = m.getOriginId();
+            fragmentMessageId = m.getMessageId();
+        }
+    }
+
+    /**
+     * Get the number of bytes that writing the given message would take.
+     *
+     * @param m The message.
+     * @return The number of bytes added by the message.
+     */
+    int sizeOf(Message m) {
+        if (extendsLastEntry(m)) {
+            return lastIsRun ? 0 : RUN_EXTENSION;
+        }
+        return ByteOp.varLongSize(m.getOriginId()) + ByteOp.varLongSize(m.getMessageId())
+                + ByteOp.varLongSize(tagOf(m)) + codec.sizeOf(m) + payloadSizeOf(m);
+    }
+
+    /**
+     * Get the tag of a single message.
+     *
+     * @param m The message.
+     * @return The tag of the message.
+     */
+    private static long tagOf(Message m) {
+        long tag = (long) m.getNbDependencies() << DEPENDENCIES_SHIFT;
+        if (m.getPayloadLength() > 0) {
+            tag |= PAYLOAD_FLAG;
+        }
+        if (m.isFragment()) {
+            tag |= FRAGMENT_FLAG;
+        }
+        return tag;
+    }
+
+    /**
+     * Get the number of bytes taken by the payload of a message once encoded.
+     *
+     * @param m The message.
+     * @return The size of the encoded payload (0 if there is none).
+     */
+    private static int payloadSizeOf(Message m) {
+        if (m.getPayloadLength() == 0) {
+            return 0;
+        }
+        int size = ByteOp.varLongSize(m.getPayloadLength()) + m.getPayloadLength();
+        if (m.isFragment()) {
+            size += ByteOp.varLongSize(m.getTotalLength()) + ByteOp.varLongSize(m.getFragmentOffset());
+        }
+        return size;
+    }
+
+    /**
+     * Encode a message after the previous ones, extending the last entry if
+     * possible. The caller must make sure there is enough room (see sizeOf).
+     *
+     * @param m The message to encode.
+     */
+    void write(Message m) {
+        if (extendsLastEntry(m)) {
+            int countOffset = lastTag + 1;
+            if (lastIsRun) {
+                ByteOp.intToByte(ByteOp.byteToInt(data, countOffset) + 1, data, countOffset);
+            } else {
+                data[lastTag] = RUN_TAG;
+                ByteOp.intToByte(2, data, countOffset);
+                length = countOffset + Integer.BYTES;
+                lastIsRun = true;
+            }
+        } else {
+            length = encodeMessage(m, length);
+        }
+        lastOriginId = m.getOriginId();
+        lastMessageId = m.getMessageId();
+        recordFragment(m);
+        nbMessages += 1;
+    }
+
+    /**
+     * Account for a message as if it was encoded after the previous ones, without
+     * writing anything: the length grows by its exact encoded size, runs and
+     * delta-encoded dependencies included.
+     *
+     * @param m The message to measure.
+     */
+    void measure(Message m) {
+        int size = sizeOf(m);
+        if (extendsLastEntry(m)) {
+            lastIsRun = true;
+        } else {
+            int pointer = length + ByteOp.varLongSize(m.getOriginId()) + ByteOp.varLongSize(m.getMessageId());
+            lastTag = tagOf(m) == 0 ? pointer : -1;
+            lastIsRun = false;
+            codec.remember(m);
+        }
+        length += size;
+        lastOriginId = m.getOriginId();
+        lastMessageId = m.getMessageId();
+        recordFragment(m);
+        nbMessages += 1;
+    }
+
+    /**
+     * Encode a single message at the given index. Information about the message is
+     * stored sequentially.
+     *
+     * @param m       The message to encode.
+     * @param pointer The index at which to start encoding.
+     * @return The index following the encoded message.
+     */
+    private int encodeMessage(Message m, int pointer) {
+        pointer = ByteOp.longToVarLong(m.getOriginId(), data, pointer);
+        pointer = ByteOp.longToVarLong(m.getMessageId(), data, pointer);
+        long tag = tagOf(m);
+        lastTag = tag == 0 ? pointer : -1;
+        lastIsRun = false;
+        pointer = ByteOp.longToVarLong(tag, data, pointer);
+        pointer = codec.encode(m, data, pointer);
+        if (m.getPayloadLength() == 0) {
+            return pointer;
+        }
+        if (m.isFragment()) {
+            pointer = ByteOp.longToVarLong(m.getTotalLength(), data, pointer);
+            pointer = ByteOp.longToVarLong(m.getFragmentOffset(), data, pointer);
+        }
+        pointer = ByteOp.longToVarLong(m.getPayloadLength(), data, pointer);
+        System.arraycopy(m.getPayloadArray(), m.getPayloadOffset(), data, pointer, m.getPayloadLength());
+        return pointer + m.getPayloadLength();
+    }
+
+    /**
+     * Get the array in which the messages are encoded.
+     *
+     * @return The array of the writer.
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Get the index following the last entry.
+     *
+     * @return The number of bytes used in the array (including the initial
+     *         offset).
+     */
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * Get the number of messages written.
+     *
+     * @return The number of messages written.
+     */
+    int getNbMessages() {
+        return nbMessages;
+    }
+}
@@ -1,9 +1,14 @@
 package cs451.message;
 
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import cs451.listener.BListener;
+import cs451.listener.RListener;
+import cs451.listener.VListener;
+import cs451.vectorclock.VectorClock;
 
 /**
  * Abstraction for a network message.
@@ -16,49 +21,128 @@ public class Packet {
     public static final int MAX_PAYLOAD_SIZE = 65507;
 
     /**
-     * The number of bytes used by a message inside the packet. 1 byte for the host
-     * ID (because it is between 1 and 128), 4 for the message ID (because it is
-     * between 1 and MAX_INT), and 1 for the size of the dependency list.
+     * The maximum number of bytes used by a message without dependencies inside
+     * the packet: the host ID (a varint, up to 5 bytes), the message ID (a
+     * varint, up to 10 bytes, as message IDs are 64 bits), and the tag giving the
+     * size of the dependency list (a varint, up to 5 bytes). Small IDs take a
+     * single byte each.
      */
-    public static final int BASIC_MESSAGE_SIZE = 6;
+    public static final int BASIC_MESSAGE_SIZE = 20;
 
     /**
-     * The size of each dependency, used by the StubbornLink to estimate the size of
-     * a packet.
+     * The maximum size of each dependency once encoded (a varint, delta-encoded
+     * by DependencyCodec), used by the StubbornLink to bound the size of a packet.
      */
-    public static final int SIZE_OF_DEPENDENCY = Integer.BYTES;
+    public static final int SIZE_OF_DEPENDENCY = DependencyCodec.MAX_DEPENDENCY_SIZE;
 
-    private static final int MAX_NUM_OF_OTHER_PROCESSES = 127;
+    /**
+     * The maximum number of bytes used by a message besides the bytes of its
+     * payload, if it carries one: the length of the complete payload, the index of
+     * the fragment in it and the length of the fragment (varints, up to 5 bytes
+     * each).
+     */
+    public static final int PAYLOAD_HEADER_SIZE = 15;
+
+    /**
+     * The maximum number of destinations of a multicast packet. A frame for more
+     * hosts is multicast in several packets.
+     */
+    public static final int MAX_MULTICAST_DESTINATIONS = 127;
+
+    /**
+     * The maximum number of bytes used by each entry of the destination table of
+     * a multicast packet: the host ID (a varint), and 4 for its packet number.
+     */
+    private static final int MAX_DESTINATION_SIZE = 5 + Integer.BYTES;
+
+    /**
+     * The maximum size of the destination table of a multicast packet (the number
+     * of destinations, a 1-byte varint, then one entry per destination).
+     */
+    static final int MAX_DESTINATIONS_SIZE = 1 + MAX_MULTICAST_DESTINATIONS * MAX_DESTINATION_SIZE;
+
+    // Byte offsets used for the byte datagram. The header ends with the last hop,
+    // a varint: the messages (or the destination table) follow it.
+    static final int NB_MESSAGES_OFFSET = 0;
+    static final int PACKET_NUMBER_OFFSET = 4;
+    static final int TIMESTAMP_OFFSET = 8;
+    static final int ACK_OFFSET = 12;
+    static final int LAST_HOP_OFFSET = 13;
+
+    /**
+     * The maximum size of the header of a packet (with a 5-byte last hop).
+     */
+    public static final int MAX_HEADER_SIZE = LAST_HOP_OFFSET + 5;
+
+    // Byte offsets used in the contents of an acknowledgement.
+    private static final int ACK_NB_RANGES_OFFSET = 4;
+    private static final int ACK_WINDOW_OFFSET = 5;
+    private static final int ACK_RANGES_OFFSET = 9;
 
     /**
-     * The maximum "safe" size for a packet, before one cannot be sure if the next
-     * waiting message retrieved by the stubborn layer will break the size limit of
-     * the packet.
+     * The number of bytes used by each selective range of an acknowledgement: its
+     * first and last packet numbers.
      */
-    public static final int SAFE_MAX_PAYLOAD_SIZE = MAX_PAYLOAD_SIZE
-            - (BASIC_MESSAGE_SIZE + MAX_NUM_OF_OTHER_PROCESSES * SIZE_OF_DEPENDENCY);
+    private static final int ACK_RANGE_SIZE = 8;
 
-    // Byte offsets used for the byte datagram.
-    private static final int NB_MESSAGES_OFFSET = 0;
-    private static final int PACKET_NUMBER_OFFSET = 4;
-    private static final int TIMESTAMP_OFFSET = 8;
-    private static final int LAST_HOP_OFFSET = 12;
-    private static final int ACK_OFFSET = 13;
-    public static final int CONTENTS_OFFSET = 14;
+    /**
+     * The maximum number of selective ranges in an acknowledgement.
+     */
+    private static final int MAX_SELECTIVE_ACKS = 1 << 5;
+
+    // Values of the flag stored at ACK_OFFSET.
+    static final byte DATA_FLAG = 0;
+    static final byte ACK_FLAG = 1;
+    static final byte MULTICAST_FLAG = 2;
+
+    /**
+     * The bit of the flag marking a compressed body: the messages are replaced by
+     * their original length (a varint) and their raw deflate compression.
+     */
+    static final byte COMPRESSED_FLAG = 4;
+
+    /**
+     * The inflater of each receiving thread, reused for all its packets.
+     */
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
 
     /**
      * The last hop of the message, i.e. the ID of the host that sent it (this is
      * not necessarily the same as the origin ID).
      */
-    private final byte lastHop;
+    private final int lastHop;
+
+    /**
+     * The encoded messages of this packet, i.e. the datagram without its header
+     * (null if the packet is backed by a frame). For a received packet, this is
+     * the receiving buffer itself.
+     */
+    private final byte[] contents;
 
     /**
-     * The datagram of this package.
+     * The index of the first message in the contents array.
      */
-    private final byte[] datagram;
+    private final int contentsOffset;
 
     /**
-     * The number of messages in this package.
+     * The number of bytes of the encoded messages in the contents array.
+     */
+    private final int contentsLength;
+
+    /**
+     * The frame containing the messages of this packet, shared with the packets
+     * sent to other hosts, or null if the messages are in the contents array.
+     */
+    private final Frame frame;
+
+    /**
+     * The destination table written between the header and the messages of a
+     * multicast packet, or null for a unicast packet.
+     */
+    private final byte[] destinations;
+
+    /**
+     * The number of messages in this package (a run counts as many messages).
      */
     private final int nbMessages;
 
@@ -68,62 +152,76 @@ public class Packet {
     private final boolean ack;
 
     /**
-     * The timestamp of the packet, when it was first sent out.
+     * The timestamp of the packet, when it was (last) sent out, in microseconds
+     * (see now). It is echoed by the acknowledgement of the packet.
      */
-    private final int timestampMs;
+    private final int timestampUs;
 
     /**
      * The packet number, given by the host originally handing out the packet.
      */
     private final int packetNumber;
 
-    private Packet(List<Message> messages, int packetNumber, int lastHop, boolean ack) {
-        this(messages, packetNumber, (byte) lastHop, ack);
-    }
+    /**
+     * Whether the receiving link decided to drop this packet, once received,
+     * without acknowledging nor delivering it (set by the decoding stage, read by
+     * the delivering one).
+     */
+    private boolean dropped = false;
 
-    private Packet(List<Message> messages, int packetNumber, byte lastHop, boolean ack) {
-        this(messages, packetNumber, lastHop, ack, (int) System.currentTimeMillis());
+    private Packet(List<Message> messages, int packetNumber, int lastHop, boolean ack) {
+        this(messages, packetNumber, lastHop, ack, now());
     }
 
-    private Packet(List<Message> messages, int packetNumber, byte lastHop, boolean ack, int timestamp) {
-        int nbMessage = messages.size();
-        byte[] data = new byte[MAX_PAYLOAD_SIZE];
-        ByteOp.intToByte(nbMessage, data, NB_MESSAGES_OFFSET);
-        ByteOp.intToByte(packetNumber, data, PACKET_NUMBER_OFFSET);
-        ByteOp.intToByte(timestamp, data, TIMESTAMP_OFFSET);
-        data[LAST_HOP_OFFSET] = lastHop;
-        data[ACK_OFFSET] = (byte) (ack ? 1 : 0);
-
-        int pointer = CONTENTS_OFFSET;
+    private Packet(List<Message> messages, int packetNumber, int lastHop, boolean ack, int timestamp) {
+        // The messages are measured first, so that they are encoded in an array of
+        // their exact size.
+        MessageWriter sizer = new MessageWriter();
         for (Message m : messages) {
-            // Information about the message is stored sequentially.
-            data[pointer] = (byte) m.getOriginId();
-            pointer += 1;
-            ByteOp.intToByte(m.getMessageId(), data, pointer);
-            pointer += 4;
-            data[pointer] = (byte) m.getDependencies().size();
-            pointer += 1;
-            for (Integer e : m.getDependencies()) {
-                ByteOp.intToByte(e, data, pointer);
-                pointer += 4;
-            }
+            sizer.measure(m);
+        }
+        MessageWriter writer = new MessageWriter(new byte[sizer.getLength()], 0);
+        for (Message m : messages) {
+            writer.write(m);
         }
 
         this.packetNumber = packetNumber;
         this.lastHop = lastHop;
         this.ack = ack;
-        this.timestampMs = timestamp;
-        this.datagram = data;
-        this.nbMessages = nbMessage;
+        this.timestampUs = timestamp;
+        this.contents = writer.getData();
+        this.contentsOffset = 0;
+        this.contentsLength = writer.getLength();
+        this.nbMessages = messages.size();
+        this.frame = null;
+        this.destinations = null;
     }
 
-    private Packet(byte[] datagram, int nbMessages, int packetNumber, byte lastHop, boolean ack, int timestamp) {
+    private Packet(Packet packet, int lastHop, boolean ack, int timestamp) {
+        this.packetNumber = packet.packetNumber;
+        this.lastHop = lastHop;
+        this.ack = ack;
+        this.timestampUs = timestamp;
+        this.contents = packet.contents;
+        this.contentsOffset = packet.contentsOffset;
+        this.contentsLength = packet.contentsLength;
+        this.nbMessages = packet.nbMessages;
+        this.frame = packet.frame;
+        this.destinations = packet.destinations;
+    }
+
+    private Packet(byte[] contents, int contentsOffset, int contentsLength, Frame frame, byte[] destinations,
+            int nbMessages, int packetNumber, int lastHop, boolean ack, int timestamp) {
         this.packetNumber = packetNumber;
         this.lastHop = lastHop;
         this.ack = ack;
-        this.timestampMs = timestamp;
-        this.datagram = datagram;
+        this.timestampUs = timestamp;
+        this.contents = contents;
+        this.contentsOffset = contentsOffset;
+        this.contentsLength = contentsLength;
         this.nbMessages = nbMessages;
+        this.frame = frame;
+        this.destinations = destinations;
     }
 
     /**
@@ -138,68 +236,266 @@ public class Packet {
         return new Packet(messages, packetNumber, lastHop, false);
     }
 
+    /**
+     * Create a new packet whose messages are the ones of a shared frame. The
+     * reference of the caller to the frame is transferred to the packet.
+     *
+     * @param frame        The sealed frame containing the messages.
+     * @param packetNumber The packet number.
+     * @param lastHop      The last hop of this packet (generally speaking, the ID
+     *                     of the local host).
+     * @return The newly created packet.
+     */
+    public static Packet createPacket(Frame frame, int packetNumber, int lastHop) {
+        return new Packet(null, 0, 0, frame, null, frame.getNbMessages(), packetNumber, lastHop, false,
+                now());
+    }
+
+    /**
+     * Create a new multicast packet, sent once to all the given destinations: its
+     * header is followed by a table giving the packet number of each destination
+     * (each destination sees the packet as if it had been sent to it alone). The
+     * packet holds no reference to the frame of its own.
+     *
+     * @param frame         The sealed frame containing the messages.
+     * @param hostIds       The IDs of the destinations.
+     * @param packetNumbers The packet number of each destination.
+     * @param lastHop       The last hop of this packet (generally speaking, the ID
+     *                      of the local host).
+     * @return The newly created packet.
+     */
+    public static Packet createMulticastPacket(Frame frame, int[] hostIds, int[] packetNumbers, int lastHop) {
+        int size = ByteOp.varLongSize(hostIds.length);
+        for (int hostId : hostIds) {
+            size += ByteOp.varLongSize(hostId) + Integer.BYTES;
+        }
+        byte[] destinations = new byte[size];
+        int pointer = ByteOp.longToVarLong(hostIds.length, destinations, 0);
+        for (int i = 0; i < hostIds.length; ++i) {
+            pointer = ByteOp.longToVarLong(hostIds[i], destinations, pointer);
+            ByteOp.intToByte(packetNumbers[i], destinations, pointer);
+            pointer += Integer.BYTES;
+        }
+        return new Packet(null, 0, 0, frame, destinations, frame.getNbMessages(), 0, lastHop, false,
+                now());
+    }
+
     /**
      * Create a new packet that is an acknowledgement of the current one. Change the
-     * last hop with a new value, generally with the local host ID.
+     * last hop with a new value, generally with the local host ID. The
+     * acknowledgement does not echo the messages: it carries the packet number
+     * and the timestamp of the current packet, followed by the cumulative
+     * acknowledgement of the packets delivered from the distant host (all the
+     * packet numbers up to it were delivered), the window advertised to the
+     * distant host (the number of messages the local host can take), and the
+     * first ranges of packets delivered above the cumulative acknowledgement. The
+     * acknowledgement of a multicast packet is a plain (unicast) packet.
      *
-     * @param id The new ID of the last hop.
+     * @param id        The new ID of the last hop.
+     * @param delivered The packet numbers delivered from the distant host.
+     * @param window    The window advertised to the distant host, in messages.
      * @return The newly created packet.
      */
-    public Packet toAck(int id) {
-        byte[] newDatagram = datagram.clone();
-        newDatagram[LAST_HOP_OFFSET] = (byte) id;
-        newDatagram[ACK_OFFSET] = 1;
-        return new Packet(newDatagram, nbMessages, packetNumber, (byte) id, true, timestampMs);
+    public Packet toAck(int id, VectorClock delivered, int window) {
+        return createAck(packetNumber, timestampUs, id, delivered, window);
+    }
+
+    /**
+     * Create an acknowledgement of a received packet, given only its header (see
+     * toAck).
+     *
+     * @param packetNumber The packet number of the acknowledged packet.
+     * @param timestamp    The timestamp of the acknowledged packet.
+     * @param id           The ID of the last hop (the local host).
+     * @param delivered    The packet numbers delivered from the distant host.
+     * @param window       The window advertised to the distant host, in messages.
+     * @return The newly created packet.
+     */
+    public static Packet createAck(int packetNumber, int timestamp, int id, VectorClock delivered, int window) {
+        long[] starts = new long[MAX_SELECTIVE_ACKS];
+        long[] ends = new long[MAX_SELECTIVE_ACKS];
+        int nbRanges = delivered.getWaitingRanges(starts, ends);
+
+        byte[] ackContents = new byte[ACK_RANGES_OFFSET + nbRanges * ACK_RANGE_SIZE];
+        ByteOp.intToByte((int) delivered.getStateOfVc(), ackContents, 0);
+        ackContents[ACK_NB_RANGES_OFFSET] = (byte) nbRanges;
+        ByteOp.intToByte(window, ackContents, ACK_WINDOW_OFFSET);
+        int pointer = ACK_RANGES_OFFSET;
+        for (int i = 0; i < nbRanges; ++i) {
+            ByteOp.intToByte((int) starts[i], ackContents, pointer);
+            ByteOp.intToByte((int) ends[i], ackContents, pointer + 4);
+            pointer += ACK_RANGE_SIZE;
+        }
+        return new Packet(ackContents, 0, ackContents.length, null, null, 0, packetNumber, id, true, timestamp);
+    }
+
+    /**
+     * Apply this acknowledgement to the packet numbers delivered by the distant
+     * host, in one step: its own packet number, its cumulative acknowledgement and
+     * its selective ranges.
+     *
+     * @param delivered The packet numbers of the local host delivered by the
+     *                  distant host.
+     * @return Whether the packet number of this acknowledgement was not
+     *         acknowledged yet.
+     */
+    public boolean acknowledgeIn(VectorClock delivered) {
+        boolean isNew = delivered.addMember(packetNumber);
+        int cumulative = ByteOp.byteToInt(contents, contentsOffset);
+        if (cumulative > delivered.getStateOfVc()) {
+            delivered.addMembers(1, cumulative);
+        }
+        int nbRanges = (int) contents[contentsOffset + ACK_NB_RANGES_OFFSET] & 0xFF;
+        int pointer = contentsOffset + ACK_RANGES_OFFSET;
+        for (int i = 0; i < nbRanges; ++i) {
+            delivered.addMembers(ByteOp.byteToInt(contents, pointer), ByteOp.byteToInt(contents, pointer + 4));
+            pointer += ACK_RANGE_SIZE;
+        }
+        return isNew;
+    }
+
+    /**
+     * Get the window advertised by this acknowledgement, i.e. the number of
+     * messages the distant host can take.
+     *
+     * @return The advertised window, in messages.
+     */
+    public int getAdvertisedWindow() {
+        return ByteOp.byteToInt(contents, contentsOffset + ACK_WINDOW_OFFSET);
+    }
+
+    /**
+     * Create a copy of a sent packet, once acknowledged, as if the distant host had
+     * sent its messages back: the messages of the packet are known to be delivered
+     * by the distant host, without being echoed by the acknowledgement. The copy
+     * shares the messages of the packet.
+     *
+     * @param id The ID of the distant host that acknowledged the packet.
+     * @return The newly created packet.
+     */
+    public Packet toAcked(int id) {
+        return new Packet(this, id, true, timestampUs);
     }
 
     /**
      * Create a new packet by changing the last hop of this message, generally with
-     * the local host ID.
+     * the local host ID. The header is only written when the packet is
+     * serialized: the messages are shared, not copied.
      *
      * @param id The new ID of the last hop.
      * @return The newly created packet.
      */
     public Packet changeLastHop(int id) {
-        byte[] newDatagram = datagram.clone();
-        newDatagram[LAST_HOP_OFFSET] = (byte) id;
-        return new Packet(newDatagram, nbMessages, packetNumber, (byte) id, ack, timestampMs);
+        return new Packet(this, id, ack, timestampUs);
     }
 
     /**
      * Create a new packet by updating its timestamp, generally done when resending
-     * an originally locally created packet.
+     * an originally locally created packet. The header is only written when the
+     * packet is serialized: the messages are shared, not copied.
      *
      * @return The newly created packet.
      */
     public Packet resetTimestamp() {
-        byte[] newDatagram = datagram.clone();
-        int newTimestamp = (int) System.currentTimeMillis();
-        ByteOp.intToByte(newTimestamp, newDatagram, TIMESTAMP_OFFSET);
-        return new Packet(newDatagram, nbMessages, packetNumber, lastHop, ack, newTimestamp);
+        return new Packet(this, lastHop, ack, now());
     }
 
     /**
      * Get the list of messages of this packet and apply the given function on each
-     * message.
+     * message, runs included.
      */
     public void deliverMessages(BListener toExecute) {
-        int pointer = CONTENTS_OFFSET;
-        for (int i = 0; i < nbMessages; ++i) {
-            byte originId = datagram[pointer];
-            pointer += 1;
-            int messageId = ByteOp.byteToInt(datagram, pointer);
-            pointer += 4;
-            int nbDependencies = (int) datagram[pointer] & 0xFF;
-            pointer += 1;
-            List<Integer> dependencies = new LinkedList<>();
-            for (int j = 0; j < nbDependencies; ++j) {
-                dependencies.add(ByteOp.byteToInt(datagram, pointer));
-                pointer += 4;
+        deliverMessages(view -> toExecute.apply(view.toMessage()), (originId, firstId, count) -> {
+            for (int i = 0; i < count; ++i) {
+                toExecute.apply(Message.createMessage(originId, firstId + i, getLastHop()));
             }
-            toExecute.apply(Message.createMessage(originId, messageId, getLastHop(), dependencies));
+        });
+    }
+
+    /**
+     * Walk through the messages of this packet, straight from its bytes, and apply
+     * the first function on each single message, and the second one on each run of
+     * consecutive messages. Single messages are given through a flyweight view,
+     * reused for the whole packet: nothing is allocated per message. A packet
+     * backed by a frame must hold a reference to it.
+     */
+    public void deliverMessages(VListener toExecute, RListener toExecuteOnRun) {
+        DependencyCodec codec = new DependencyCodec();
+        MessageView view = new MessageView(getLastHop());
+        byte[] contents = frame == null ? this.contents : frame.getBody();
+        int pointer = frame == null ? contentsOffset : 0;
+        int end = pointer + (frame == null ? contentsLength : frame.getLength());
+        while (pointer < end) {
+            int originId = (int) ByteOp.varLongToLong(contents, pointer);
+            pointer += ByteOp.varLongSize(originId);
+            long messageId = ByteOp.varLongToLong(contents, pointer);
+            pointer += ByteOp.varLongSize(messageId);
+            int tag = (int) ByteOp.varLongToLong(contents, pointer);
+            pointer += ByteOp.varLongSize(tag);
+            if (tag == MessageWriter.RUN_TAG) {
+                int count = ByteOp.byteToInt(contents, pointer);
+                pointer += Integer.BYTES;
+                toExecuteOnRun.apply(originId, messageId, count);
+                continue;
+            }
+            int nb = tag >>> MessageWriter.DEPENDENCIES_SHIFT;
+            pointer = codec.decode(originId, nb, contents, pointer, view.dependencyBuffer(nb));
+            view.set(originId, messageId, nb);
+            if ((tag & MessageWriter.PAYLOAD_FLAG) != 0) {
+                int totalLength = -1;
+                int fragmentOffset = 0;
+                if ((tag & MessageWriter.FRAGMENT_FLAG) != 0) {
+                    totalLength = (int) ByteOp.varLongToLong(contents, pointer);
+                    pointer += ByteOp.varLongSize(totalLength);
+                    fragmentOffset = (int) ByteOp.varLongToLong(contents, pointer);
+                    pointer += ByteOp.varLongSize(fragmentOffset);
+                }
+                int payloadLength = (int) ByteOp.varLongToLong(contents, pointer);
+                pointer += ByteOp.varLongSize(payloadLength);
+                view.setPayload(contents, pointer, payloadLength, fragmentOffset,
+                        totalLength < 0 ? payloadLength : totalLength);
+                pointer += payloadLength;
+            }
+            toExecute.apply(view);
+        }
+    }
+
+    /**
+     * Add a reference to the frame backing this packet, if any. Must be called
+     * before handing the packet to another thread that will release it.
+     */
+    public void retain() {
+        if (frame != null) {
+            frame.retain();
         }
     }
 
+    /**
+     * Release a reference to the frame backing this packet, if any.
+     */
+    public void release() {
+        if (frame != null) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Drop this received packet: it is neither acknowledged nor delivered, as if it
+     * had been lost, so that the distant host sends it again later.
+     */
+    public void drop() {
+        dropped = true;
+    }
+
+    /**
+     * Check whether this received packet was dropped by the receiving link.
+     *
+     * @return Whether the packet was dropped.
+     */
+    public boolean isDropped() {
+        return dropped;
+    }
+
     /**
      * Get the packet number.
      * 
@@ -216,7 +512,7 @@ public class Packet {
      * @return The ID of the host that sent this message, the last hop.
      */
     public int getLastHop() {
-        return (int) lastHop & 0xFF;
+        return lastHop;
     }
 
     /**
@@ -230,12 +526,73 @@ public class Packet {
         return ack;
     }
 
+    /**
+     * Get the current time, as carried by the timestamps of the packets: the low 32
+     * bits of a monotonic clock in microseconds, only compared by the host that
+     * set them. Differences are correct up to about 35 minutes.
+     *
+     * @return The current time, in microseconds.
+     */
+    static int now() {
+        return (int) (System.nanoTime() / 1000);
+    }
+
+    /**
+     * Get the timestamp of the packet.
+     *
+     * @return The timestamp, in microseconds.
+     */
     int getTimestamp() {
-        return timestampMs;
+        return timestampUs;
     }
 
-    public int getAgeInMs() {
-        return (int) System.currentTimeMillis() - timestampMs;
+    /**
+     * Get the time elapsed since the timestamp of this packet. For an
+     * acknowledgement, this is the RTT of the acknowledged packet.
+     *
+     * @return The age of the packet, in microseconds.
+     */
+    public int getAgeInUs() {
+        return now() - timestampUs;
+    }
+
+    /**
+     * Get the number of messages of this packet (the messages of the runs
+     * included).
+     *
+     * @return The number of messages.
+     */
+    public int getNbMessages() {
+        return nbMessages;
+    }
+
+    /**
+     * Get the destinations of a multicast packet, read from its destination table.
+     *
+     * @return The IDs of the destinations, or an empty array for a unicast packet.
+     */
+    public int[] getDestinationIds() {
+        if (destinations == null) {
+            return new int[0];
+        }
+        int[] hostIds = new int[(int) ByteOp.varLongToLong(destinations, 0)];
+        int pointer = ByteOp.varLongSize(hostIds.length);
+        for (int i = 0; i < hostIds.length; ++i) {
+            hostIds[i] = (int) ByteOp.varLongToLong(destinations, pointer);
+            pointer += ByteOp.varLongSize(hostIds[i]) + Integer.BYTES;
+        }
+        return hostIds;
+    }
+
+    /**
+     * Get the size of the serialized packet, i.e. of the datagram on the wire
+     * (without compression, which only makes it smaller).
+     *
+     * @return The size of the packet, in bytes.
+     */
+    public int getSize() {
+        return LAST_HOP_OFFSET + ByteOp.varLongSize(lastHop) + (destinations == null ? 0 : destinations.length)
+                + (frame == null ? contentsLength : frame.getLength());
     }
 
     @Override
@@ -245,26 +602,150 @@ public class Packet {
     }
 
     /**
-     * Serialize the Packet in a byte array.
+     * Serialize the Packet in a byte array of its exact size.
      *
      * @return The corresponding byte array.
      */
     public byte[] serialize() {
-        return datagram;
+        ByteBuffer buffer = ByteBuffer.allocate(getSize());
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Serialize the Packet in the given buffer: the header is written from the
+     * fields of the packet, followed by the destination table (if any) and the
+     * messages, from the contents array or the shared frame.
+     *
+     * @param buffer The buffer in which to write the packet (big-endian).
+     */
+    public void writeTo(ByteBuffer buffer) {
+        writeTo(buffer, null);
+    }
+
+    /**
+     * Serialize the Packet in the given buffer, compressing its messages if the
+     * compressor accepts it. The compressed body of a frame is kept by the frame,
+     * so that it is only compressed once for all its destinations.
+     *
+     * @param buffer     The buffer in which to write the packet (big-endian).
+     * @param compressor The compressor of the sending thread, or null to never
+     *                   compress.
+     */
+    public void writeTo(ByteBuffer buffer, Compressor compressor) {
+        byte[] body = frame != null ? frame.getBody() : contents;
+        int offset = frame != null ? 0 : contentsOffset;
+        int length = frame != null ? frame.getLength() : contentsLength;
+        byte[] compressed = null;
+        int compressedLength = 0;
+        if (compressor != null && frame != null) {
+            compressed = frame.compress(compressor);
+            compressedLength = compressed == null ? 0 : compressed.length;
+        } else if (compressor != null) {
+            compressedLength = compressor.compress(body, offset, length);
+            compressed = compressedLength < 0 ? null : compressor.getOutput();
+        }
+
+        byte flag = destinations != null ? MULTICAST_FLAG : ack ? ACK_FLAG : DATA_FLAG;
+        buffer.putInt(nbMessages);
+        buffer.putInt(packetNumber);
+        buffer.putInt(timestampUs);
+        buffer.put(compressed == null ? flag : (byte) (flag | COMPRESSED_FLAG));
+        ByteOp.putVarLong(lastHop, buffer);
+        if (destinations != null) {
+            buffer.put(destinations);
+        }
+        if (compressed != null) {
+            ByteOp.putVarLong(length, buffer);
+            buffer.put(compressed, 0, compressedLength);
+        } else {
+            buffer.put(body, offset, length);
+        }
     }
 
     /**
-     * Deserialize the given packet, and create a new Packet instance.
+     * Deserialize the given packet, and create a new Packet instance. The packet
+     * refers to the given array, which must not be reused while the packet is,
+     * unless its body was compressed (it is then decompressed in its own array).
+     * A multicast packet takes the packet number given to the local host by its
+     * destination table.
      *
      * @param datagram The content of the received packet.
-     * @return A newly created Packet.
+     * @param length   The length of the received packet.
+     * @param myId     The ID of the local host.
+     * @return A newly created Packet, or null if the packet is a multicast packet
+     *         not addressed to the local host, or its compressed body is
+     *         corrupted.
      */
-    public static Packet deserialize(byte[] datagram) {
+    public static Packet deserialize(byte[] datagram, int length, int myId) {
         int nbMessages = ByteOp.byteToInt(datagram, NB_MESSAGES_OFFSET);
         int packetNumber = ByteOp.byteToInt(datagram, PACKET_NUMBER_OFFSET);
         int timestamp = ByteOp.byteToInt(datagram, TIMESTAMP_OFFSET);
-        byte lastHop = datagram[LAST_HOP_OFFSET];
-        boolean ack = datagram[ACK_OFFSET] != 0;
-        return new Packet(datagram, nbMessages, packetNumber, lastHop, ack, timestamp);
+        boolean compressed = (datagram[ACK_OFFSET] & COMPRESSED_FLAG) != 0;
+        byte flag = (byte) (datagram[ACK_OFFSET] & ~COMPRESSED_FLAG);
+        int lastHop = (int) ByteOp.varLongToLong(datagram, LAST_HOP_OFFSET);
+        int pointer = LAST_HOP_OFFSET + ByteOp.varLongSize(lastHop);
+
+        if (flag == MULTICAST_FLAG) {
+            int nbDestinations = (int) ByteOp.varLongToLong(datagram, pointer);
+            pointer += ByteOp.varLongSize(nbDestinations);
+            boolean found = false;
+            for (int i = 0; i < nbDestinations; ++i) {
+                int hostId = (int) ByteOp.varLongToLong(datagram, pointer);
+                pointer += ByteOp.varLongSize(hostId);
+                if (hostId == myId) {
+                    packetNumber = ByteOp.byteToInt(datagram, pointer);
+                    found = true;
+                }
+                pointer += Integer.BYTES;
+            }
+            if (!found) {
+                return null;
+            }
+        }
+
+        if (!compressed) {
+            return new Packet(datagram, pointer, length - pointer, null, null, nbMessages, packetNumber, lastHop,
+                    flag == ACK_FLAG, timestamp);
+        }
+        byte[] contents = inflate(datagram, pointer, length);
+        return contents == null ? null
+                : new Packet(contents, 0, contents.length, null, null, nbMessages, packetNumber, lastHop,
+                        flag == ACK_FLAG, timestamp);
+    }
+
+    /**
+     * Decompress the body of a received packet in a new array, with the inflater
+     * of the current thread.
+     *
+     * @param datagram The content of the received packet.
+     * @param pointer  The index of the compressed body (starting with its original
+     *                 length).
+     * @param length   The length of the received packet.
+     * @return The decompressed body, or null if the body is corrupted.
+     */
+    private static byte[] inflate(byte[] datagram, int pointer, int length) {
+        long originalLength = ByteOp.varLongToLong(datagram, pointer);
+        pointer += ByteOp.varLongSize(originalLength);
+        if (originalLength > MAX_PAYLOAD_SIZE) {
+            return null;
+        }
+        byte[] contents = new byte[(int) originalLength];
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(datagram, pointer, length - pointer);
+        try {
+            int size = 0;
+            while (size < contents.length) {
+                int inflated = inflater.inflate(contents, size, contents.length - size);
+                if (inflated == 0) {
+                    return null;
+                }
+                size += inflated;
+            }
+        } catch (DataFormatException e) {
+            return null;
+        }
+        return contents;
     }
 }
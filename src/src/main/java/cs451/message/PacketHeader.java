@@ -0,0 +1,110 @@
+package cs451.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight view of the header of a received datagram, read in place before the
+ * datagram is copied or deserialized: its packet number (the one given to the
+ * local host, for a multicast packet), its timestamp, its last hop and whether
+ * it is an acknowledgement. The same header is reused for all the datagrams of
+ * a receiving thread, and is only valid until the next one is read.
+ */
+public class PacketHeader {
+
+    /**
+     * The packet number of the current datagram.
+     */
+    private int packetNumber;
+
+    /**
+     * The timestamp of the current datagram.
+     */
+    private int timestamp;
+
+    /**
+     * The last hop of the current datagram, i.e. the ID of the host that sent it.
+     */
+    private int lastHop;
+
+    /**
+     * Whether the current datagram is an acknowledgement.
+     */
+    private boolean ack;
+
+    /**
+     * Read the header of a received datagram, between the position and the limit
+     * of the given buffer (which are left unchanged). For a multicast datagram,
+     * the destination table is walked to find the packet number of the local
+     * host.
+     *
+     * @param datagram The buffer containing the datagram.
+     * @param myId     The ID of the local host.
+     * @return Whether the datagram is a packet addressed to the local host, i.e.
+     *         it is long enough, and it is not a multicast packet for other hosts
+     *         only.
+     */
+    public boolean read(ByteBuffer datagram, int myId) {
+        int base = datagram.position();
+        if (datagram.remaining() <= Packet.LAST_HOP_OFFSET) {
+            return false;
+        }
+        packetNumber = datagram.getInt(base + Packet.PACKET_NUMBER_OFFSET);
+        timestamp = datagram.getInt(base + Packet.TIMESTAMP_OFFSET);
+        byte flag = (byte) (datagram.get(base + Packet.ACK_OFFSET) & ~Packet.COMPRESSED_FLAG);
+        ack = flag == Packet.ACK_FLAG;
+        lastHop = (int) ByteOp.getVarLong(datagram, base + Packet.LAST_HOP_OFFSET);
+        if (flag != Packet.MULTICAST_FLAG) {
+            return true;
+        }
+
+        int pointer = base + Packet.LAST_HOP_OFFSET + ByteOp.varLongSize(lastHop);
+        int nbDestinations = (int) ByteOp.getVarLong(datagram, pointer);
+        pointer += ByteOp.varLongSize(nbDestinations);
+        for (int i = 0; i < nbDestinations; ++i) {
+            int hostId = (int) ByteOp.getVarLong(datagram, pointer);
+            pointer += ByteOp.varLongSize(hostId);
+            if (hostId == myId) {
+                packetNumber = datagram.getInt(pointer);
+                return true;
+            }
+            pointer += Integer.BYTES;
+        }
+        return false;
+    }
+
+    /**
+     * Get the packet number of the current datagram.
+     *
+     * @return The packet number (given to the local host, for a multicast packet).
+     */
+    public int getPacketNumber() {
+        return packetNumber;
+    }
+
+    /**
+     * Get the timestamp of the current datagram.
+     *
+     * @return The timestamp, in microseconds.
+     */
+    public int getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Get the last hop of the current datagram.
+     *
+     * @return The ID of the host that sent the datagram.
+     */
+    public int getLastHop() {
+        return lastHop;
+    }
+
+    /**
+     * Check whether the current datagram is an acknowledgement.
+     *
+     * @return Whether the datagram is an acknowledgement.
+     */
+    public boolean isAck() {
+        return ack;
+    }
+}
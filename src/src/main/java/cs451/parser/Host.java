@@ -6,10 +6,12 @@ import java.net.UnknownHostException;
 public class Host {
 
     private static final String IP_START_REGEX = "/";
+    private static final String PORT_RANGE_SEPARATOR = "-";
 
     private int id;
     private String ip;
     private int port = -1;
+    private int portCount = 1;
 
     public boolean populate(String idString, String ipString, String portString) {
         try {
@@ -22,11 +24,24 @@ public class Host {
                 ip = InetAddress.getByName(ipTest.split(IP_START_REGEX)[0]).getHostAddress();
             }
 
-            port = Integer.parseInt(portString);
+            // The port can also be given as a contiguous range "first-last", one port
+            // per receiving socket of the host.
+            String[] portRange = portString.split(PORT_RANGE_SEPARATOR);
+            port = Integer.parseInt(portRange[0]);
             if (port <= 0) {
                 System.err.println("Port in the hosts file must be a positive number!");
                 return false;
             }
+            if (portRange.length == 2) {
+                portCount = Integer.parseInt(portRange[1]) - port + 1;
+                if (portCount <= 0) {
+                    System.err.println("Port range in the hosts file must be in ascending order!");
+                    return false;
+                }
+            } else if (portRange.length > 2) {
+                System.err.println("Port range in the hosts file must be of the form first-last!");
+                return false;
+            }
         } catch (NumberFormatException e) {
             if (port == -1) {
                 System.err.println("Id in the hosts file must be a number!");
@@ -53,4 +68,8 @@ public class Host {
         return port;
     }
 
+    public int getPortCount() {
+        return portCount;
+    }
+
 }
@@ -46,7 +46,7 @@ public class BroadcastAcks {
                 for (int j = 1; j <= numHosts; ++j) {
                     MessageRange mr = new MessageRange();
                     if (j == myId) {
-                        mr.setRange(1, Integer.MAX_VALUE);
+                        mr.setRange(1, Long.MAX_VALUE);
                     }
                     hostMap.put(j, mr);
                 }
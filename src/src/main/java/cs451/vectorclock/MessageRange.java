@@ -11,7 +11,7 @@ public class MessageRange {
     /**
      * A token value used when the range is empty.
      */
-    public static final int EMPTY = Integer.MIN_VALUE;
+    public static final long EMPTY = Long.MIN_VALUE;
 
     /**
      * The "linked list" of sub-ranges.
@@ -30,7 +30,7 @@ public class MessageRange {
      * @param a The lower bound of the range.
      * @param b The upper bound of the range.
      */
-    public void setRange(int a, int b) {
+    public void setRange(long a, long b) {
         synchronized (lock) {
             ranges = new Range(a, b);
         }
@@ -43,11 +43,11 @@ public class MessageRange {
      * @param a The lower bound of the new range.
      * @param b The upper bound of the new range.
      */
-    public void addRange(int a, int b) {
+    public void addRange(long a, long b) {
         synchronized (lock) {
             Range previous = null;
             Range current = ranges;
-            int lowerBound = EMPTY;
+            long lowerBound = EMPTY;
 
             while (current != null) {
                 if (lowerBound == EMPTY) {
@@ -96,7 +96,7 @@ public class MessageRange {
      * @param e The new element to add
      * @return True if the element was absent, false otherwise.
      */
-    public boolean add(int e) {
+    public boolean add(long e) {
         synchronized (lock) {
             Range previous = null;
             Range current = ranges;
@@ -136,8 +136,8 @@ public class MessageRange {
      *
      * @return The first element of the range.
      */
-    public int poll() {
-        int firstElement;
+    public long poll() {
+        long firstElement;
         synchronized (lock) {
             if (ranges == null) {
                 return EMPTY;
@@ -158,7 +158,7 @@ public class MessageRange {
      * @param e The element to check.
      * @return Whether the given element is present in the range or not.
      */
-    public boolean contains(int e) {
+    public boolean contains(long e) {
         synchronized (lock) {
             Range current = ranges;
             while (current != null) {
@@ -180,7 +180,7 @@ public class MessageRange {
      *
      * @return The last element of the first sub-range.
      */
-    public int endOfFirstRange() {
+    public long endOfFirstRange() {
         synchronized (lock) {
             if (ranges == null) {
                 return EMPTY;
@@ -189,6 +189,28 @@ public class MessageRange {
         }
     }
 
+    /**
+     * Copy the bounds of the sub-ranges following the first one, in ascending
+     * order, until the given arrays are full.
+     *
+     * @param starts The array in which to copy the start values of the sub-ranges.
+     * @param ends   The array in which to copy the end values of the sub-ranges.
+     * @return The number of sub-ranges copied.
+     */
+    public int copyRangesAfterFirst(long[] starts, long[] ends) {
+        synchronized (lock) {
+            int count = 0;
+            Range current = ranges == null ? null : ranges.next();
+            while (current != null && count < starts.length) {
+                starts[count] = current.getStart();
+                ends[count] = current.getEnd();
+                count += 1;
+                current = current.next();
+            }
+            return count;
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -205,8 +227,8 @@ public class MessageRange {
      * these sub-ranges to create a collection of ranges. Implements a linked list.
      */
     private static class Range {
-        private int start;
-        private int end;
+        private long start;
+        private long end;
         private Range next;
 
         /**
@@ -216,7 +238,7 @@ public class MessageRange {
          * @param end   The end value of the sub-range (inclusive).
          * @param next  The sub-range following, or null if none.
          */
-        public Range(int start, int end, Range next) {
+        public Range(long start, long end, Range next) {
             this.start = start;
             this.end = end;
             this.next = next;
@@ -228,7 +250,7 @@ public class MessageRange {
          * @param start The start value of the sub-range (inclusive).
          * @param end   The end value of the sub-range (inclusive).
          */
-        public Range(int start, int end) {
+        public Range(long start, long end) {
             this(start, end, null);
         }
 
@@ -239,7 +261,7 @@ public class MessageRange {
          * @param e The value to check.
          * @return Whether the sub-range is not directly after the given value.
          */
-        public boolean isWellAfter(int e) {
+        public boolean isWellAfter(long e) {
             return e < start - 1;
         }
 
@@ -249,7 +271,7 @@ public class MessageRange {
          * @param e The value to check.
          * @return Whether the sub-range contains the value.
          */
-        public boolean contains(int e) {
+        public boolean contains(long e) {
             return start <= e && e <= end;
         }
 
@@ -274,7 +296,7 @@ public class MessageRange {
          * @param e The value to check.
          * @return Whether the sub-range was successfully extended or not.
          */
-        public boolean canBeExtendedBy(int e) {
+        public boolean canBeExtendedBy(long e) {
             if (end + 1 == e) {
                 end = e;
                 return true;
@@ -309,7 +331,7 @@ public class MessageRange {
          *
          * @return The start value of the sub-range.
          */
-        public int getStart() {
+        public long getStart() {
             return start;
         }
 
@@ -318,7 +340,7 @@ public class MessageRange {
          *
          * @return The end value of the sub-range.
          */
-        public int getEnd() {
+        public long getEnd() {
             return end;
         }
 
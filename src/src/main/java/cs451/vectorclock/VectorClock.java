@@ -24,10 +24,33 @@ public class VectorClock {
      * @param e The new element to be added.
      * @return True if the element was absent, false otherwise.
      */
-    public boolean addMember(int e) {
+    public boolean addMember(long e) {
         return range.add(e);
     }
 
+    /**
+     * Add all the elements between two bounds to the vector clock, or the set of
+     * elements waiting to be added to the VectorClock.
+     *
+     * @param a The first element to add.
+     * @param b The last element to add (inclusive).
+     */
+    public void addMembers(long a, long b) {
+        range.addRange(a, b);
+    }
+
+    /**
+     * Copy the ranges of elements waiting to be added to the VectorClock, i.e.
+     * above its current value, until the given arrays are full.
+     *
+     * @param starts The array in which to copy the first element of each range.
+     * @param ends   The array in which to copy the last element of each range.
+     * @return The number of ranges copied.
+     */
+    public int getWaitingRanges(long[] starts, long[] ends) {
+        return range.copyRangesAfterFirst(starts, ends);
+    }
+
     /**
      * Check whether a given element is contained in the vector clock, or the set of
      * elements waiting to be added to the VectorClock.
@@ -35,7 +58,7 @@ public class VectorClock {
      * @param e The element to check.
      * @return Whether the given element is present in the range or not.
      */
-    public boolean contains(int e) {
+    public boolean contains(long e) {
         return range.contains(e);
     }
 
@@ -44,7 +67,7 @@ public class VectorClock {
      *
      * @return The current value of the VectorClock.
      */
-    public int getStateOfVc() {
+    public long getStateOfVc() {
         return range.endOfFirstRange();
     }
 }
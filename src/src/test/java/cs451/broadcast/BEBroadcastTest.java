@@ -0,0 +1,96 @@
+package cs451.broadcast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import cs451.link.Link;
+import cs451.listener.BListener;
+import cs451.message.Message;
+import cs451.parser.Host;
+
+public class BEBroadcastTest {
+
+    private static final int NB_MESSAGES = 20_000;
+
+    private static Host host(int id) {
+        Host host = new Host();
+        host.populate(Integer.toString(id), "127.0.0.1", Integer.toString(11000 + id));
+        return host;
+    }
+
+    /**
+     * A link sending nothing, whose listener is called by the test.
+     */
+    private static class FakeLink implements Link {
+        private final BListener listener;
+
+        FakeLink(BListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void send(Message message, int hostId) {
+        }
+
+        @Override
+        public void broadcast(Message message, List<Integer> hostIds) {
+        }
+
+        @Override
+        public void sendRange(int hostId, int originId, long messageId) {
+        }
+    }
+
+    @Test
+    public void localAndLinkDeliveriesNeverOverlap() throws InterruptedException {
+        AtomicInteger inside = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean(false);
+        int[] delivered = new int[1];
+        AtomicInteger total = new AtomicInteger();
+        BListener upper = message -> {
+            if (inside.incrementAndGet() != 1) {
+                overlapped.set(true);
+            }
+            // Not thread-safe on purpose, as the upper layers.
+            delivered[0] += 1;
+            total.incrementAndGet();
+            inside.decrementAndGet();
+        };
+
+        AtomicReference<FakeLink> link = new AtomicReference<>();
+        BEBroadcast beb = new BEBroadcast(List.of(host(1), host(2)), 1, upper, listener -> {
+            link.set(new FakeLink(listener));
+            return link.get();
+        });
+        Thread handler = new Thread(beb::run);
+        handler.setDaemon(true);
+        handler.start();
+
+        Thread distant = new Thread(() -> {
+            for (int i = 1; i <= NB_MESSAGES; ++i) {
+                link.get().listener.apply(Message.createMessage(2, i, 2));
+            }
+        });
+        distant.start();
+        for (int i = 1; i <= NB_MESSAGES; ++i) {
+            beb.broadcast(Message.createMessage(1, i, 1));
+        }
+        distant.join();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (total.get() < 2 * NB_MESSAGES && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertFalse("Two threads delivered messages at the same time.", overlapped.get());
+        assertEquals(2 * NB_MESSAGES, total.get());
+        assertEquals(2 * NB_MESSAGES, delivered[0]);
+    }
+}
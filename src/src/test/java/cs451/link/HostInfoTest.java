@@ -0,0 +1,83 @@
+package cs451.link;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import cs451.message.Message;
+import cs451.message.Packet;
+import cs451.vectorclock.VectorClock;
+
+public class HostInfoTest {
+
+    private static final int WINDOW = 8;
+
+    /**
+     * Send a window of packets to a host, without scheduling their timers.
+     */
+    private static List<WaitingPacket> sendWindow(HostInfo host) {
+        List<WaitingPacket> packets = new ArrayList<>();
+        for (int i = 0; i < WINDOW; ++i) {
+            int packetNumber = host.getNewPacketNumber();
+            Packet packet = Packet.createPacket(List.of(Message.createMessage(1, packetNumber, 1)), packetNumber, 1);
+            WaitingPacket wp = new WaitingPacket(packet, 2, host);
+            host.addPacketToConfirm(wp);
+            packets.add(wp);
+        }
+        return packets;
+    }
+
+    @Test
+    public void timeoutOfAWindowBacksOffOnce() {
+        HostInfo host = new HostInfo(InetAddress.getLoopbackAddress(), 11002, 3);
+        long initial = host.getTimeoutUs();
+        List<WaitingPacket> packets = sendWindow(host);
+
+        for (WaitingPacket wp : packets) {
+            assertTrue(host.retransmitting(wp, w -> {
+            }));
+        }
+        assertEquals(Math.min(2 * initial, Link.MAX_TIMEOUT * 1000), host.getTimeoutUs());
+
+        // A packet retransmitted after the back-off times out again: a new event.
+        assertTrue(host.retransmitting(packets.get(0), w -> {
+        }));
+        assertEquals(Math.min(4 * initial, Link.MAX_TIMEOUT * 1000), host.getTimeoutUs());
+    }
+
+    @Test
+    public void skippedPacketIsFastRetransmittedOnce() {
+        HostInfo host = new HostInfo(InetAddress.getLoopbackAddress(), 11002, 3);
+        long initial = host.getTimeoutUs();
+        List<WaitingPacket> packets = sendWindow(host);
+        WaitingPacket first = packets.get(0);
+
+        // All the packets but the first one are acked.
+        VectorClock delivered = new VectorClock();
+        List<WaitingPacket> lost = new ArrayList<>();
+        for (int i = 1; i < WINDOW; ++i) {
+            int packetNumber = packets.get(i).getPacket().getPacketNumber();
+            delivered.addMember(packetNumber);
+            host.markDelivered(Packet.createAck(packetNumber, 0, 2, delivered, Integer.MAX_VALUE));
+            host.removeAckedPackets(wp -> {
+            }, lost::add);
+        }
+        assertEquals(List.of(first), lost);
+
+        // Its fast retransmission does not back the timeout off.
+        assertTrue(host.retransmitting(first, w -> {
+        }));
+        assertEquals(initial, host.getTimeoutUs());
+        assertTrue(first.isRetransmitted());
+
+        // A later timeout does.
+        assertTrue(host.retransmitting(first, w -> {
+        }));
+        assertEquals(Math.min(2 * initial, Link.MAX_TIMEOUT * 1000), host.getTimeoutUs());
+    }
+}
@@ -0,0 +1,126 @@
+package cs451.link;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import cs451.message.Message;
+import cs451.message.Packet;
+import cs451.vectorclock.VectorClock;
+
+public class InFlightBudgetTest {
+
+    private static final int TOTAL = 128;
+
+    /**
+     * A distant host with messages waiting, and the packet numbers it acked.
+     */
+    private static class Peer {
+        private final int id;
+        private final HostInfo host = new HostInfo(InetAddress.getLoopbackAddress(), 11000, 3);
+        private final VectorClock acked = new VectorClock();
+
+        Peer(int id) {
+            this.id = id;
+            host.addMessageInWaitingList(Message.createMessage(1, 1, 1));
+        }
+
+        /**
+         * Send packets to the host and apply its ack of all of them.
+         */
+        void ack(int nbPackets) {
+            int packetNumber = 0;
+            for (int i = 0; i < nbPackets; ++i) {
+                packetNumber = host.getNewPacketNumber();
+                Packet packet = Packet.createPacket(List.of(Message.createMessage(1, packetNumber + 1, 1)),
+                        packetNumber, 1);
+                host.addPacketToConfirm(new WaitingPacket(packet, id, host));
+                acked.addMember(packetNumber);
+            }
+            host.markDelivered(Packet.createAck(packetNumber, 0, id, acked, Integer.MAX_VALUE));
+            assertEquals(nbPackets, host.removeAckedPackets(wp -> {
+            }, wp -> {
+            }));
+        }
+    }
+
+    @Test
+    public void sharesMoveTowardsTheFasterHost() {
+        Peer fast = new Peer(2);
+        Peer slow = new Peer(3);
+        InFlightBudget budget = new InFlightBudget(TOTAL, List.of(fast.host, slow.host));
+        int equalShare = fast.host.getBudgetShare();
+        assertEquals(equalShare, slow.host.getBudgetShare());
+
+        long now = System.nanoTime();
+        for (int i = 1; i <= 20; ++i) {
+            fast.ack(16);
+            slow.ack(1);
+            assertTrue(budget.rebalance(now + i * InFlightBudget.INTERVAL_NS));
+        }
+
+        assertTrue(fast.host.getBudgetShare() > equalShare);
+        assertTrue(slow.host.getBudgetShare() < equalShare);
+        assertTrue(fast.host.getBudgetShare() + slow.host.getBudgetShare() <= TOTAL);
+    }
+
+    @Test
+    public void lateRebalanceWeighsAsManyIntervals() {
+        Peer first = new Peer(2);
+        Peer second = new Peer(3);
+        InFlightBudget budget = new InFlightBudget(TOTAL, List.of(first.host, second.host));
+        Peer lateFirst = new Peer(2);
+        Peer lateSecond = new Peer(3);
+        InFlightBudget late = new InFlightBudget(TOTAL, List.of(lateFirst.host, lateSecond.host));
+
+        // The first host acks faster, then the second one: one budget is redistributed
+        // on time, the other one only once at the end of the second phase.
+        long now = System.nanoTime();
+        for (int i = 1; i <= 20; ++i) {
+            first.ack(16);
+            second.ack(1);
+            lateFirst.ack(16);
+            lateSecond.ack(1);
+            assertTrue(budget.rebalance(now + i * InFlightBudget.INTERVAL_NS));
+            assertTrue(late.rebalance(now + i * InFlightBudget.INTERVAL_NS));
+        }
+        for (int i = 21; i <= 40; ++i) {
+            first.ack(1);
+            second.ack(16);
+            assertTrue(budget.rebalance(now + i * InFlightBudget.INTERVAL_NS));
+        }
+        lateFirst.ack(20);
+        lateSecond.ack(20 * 16);
+        assertFalse(late.rebalance(now + 20 * InFlightBudget.INTERVAL_NS + InFlightBudget.INTERVAL_NS / 2));
+        assertTrue(late.rebalance(now + 40 * InFlightBudget.INTERVAL_NS));
+
+        assertTrue(second.host.getBudgetShare() > first.host.getBudgetShare());
+        assertEquals(first.host.getBudgetShare(), lateFirst.host.getBudgetShare(), 1);
+        assertEquals(second.host.getBudgetShare(), lateSecond.host.getBudgetShare(), 1);
+    }
+
+    @Test
+    public void totalStaysBoundedWithManyHosts() {
+        for (int nbPeers : new int[] { 2, 100, 256, 300, 1000 }) {
+            List<HostInfo> hosts = new ArrayList<>();
+            for (int i = 0; i < nbPeers; ++i) {
+                hosts.add(new Peer(i + 2).host);
+            }
+            InFlightBudget budget = new InFlightBudget(TOTAL, hosts);
+            assertTrue(budget.rebalance(System.nanoTime() + InFlightBudget.INTERVAL_NS));
+
+            int sum = 0;
+            for (HostInfo host : hosts) {
+                assertTrue(host.getBudgetShare() >= CongestionControl.MIN_WINDOW);
+                sum += host.getBudgetShare();
+            }
+            assertTrue(sum <= Math.max(TOTAL, CongestionControl.MIN_WINDOW * nbPeers));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package cs451.link;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import org.junit.Test;
+
+import cs451.message.Message;
+import cs451.message.Packet;
+import cs451.vectorclock.VectorClock;
+
+public class StubbornLinkTest {
+
+    private static final int NB_MESSAGES = 10;
+
+    /**
+     * Create a host with waiting messages, which advertised the given window.
+     */
+    private static HostInfo hostWithWindow(int window) {
+        HostInfo host = new HostInfo(InetAddress.getLoopbackAddress(), 11002, 3);
+        for (int i = 1; i <= NB_MESSAGES; ++i) {
+            host.addMessageInWaitingList(Message.createMessage(1, i, 1));
+        }
+        host.applyAdvertisedWindow(Packet.createAck(1, 0, 2, new VectorClock(), window));
+        return host;
+    }
+
+    @Test
+    public void smallAdvertisedWindowLimitsAPacket() {
+        HostInfo host = hostWithWindow(3);
+        List<Message> messages = StubbornLink.retrieveAListOfMessages(host, host.getAdvertisedRoom());
+        assertEquals(3, messages.size());
+        assertEquals(NB_MESSAGES - 3, countWaiting(host));
+    }
+
+    @Test
+    public void zeroWindowStillProbesWithOneMessage() {
+        HostInfo host = hostWithWindow(0);
+        List<Message> messages = StubbornLink.retrieveAListOfMessages(host, host.getAdvertisedRoom());
+        assertEquals(1, messages.size());
+    }
+
+    @Test
+    public void largeAdvertisedWindowTakesAllTheMessages() {
+        HostInfo host = hostWithWindow(1000);
+        List<Message> messages = StubbornLink.retrieveAListOfMessages(host, host.getAdvertisedRoom());
+        assertEquals(NB_MESSAGES, messages.size());
+    }
+
+    private static int countWaiting(HostInfo host) {
+        int count = 0;
+        while (host.getNextWaitingMessage() != null) {
+            count += 1;
+        }
+        return count;
+    }
+}